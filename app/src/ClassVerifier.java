@@ -32,54 +32,180 @@
 */
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Enumeration;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
 
+/**
+ * Filters a jar of precompiled org.jpc.dynamic code blocks down to the
+ * classes this VM accepts. Every class is defined from the jar's own bytes
+ * and instantiated, which forces verification; classes are checked in
+ * parallel on a fork/join pool. The output jar holds the survivors in name
+ * order with a fixed timestamp, so the same input always gives the same
+ * bytes, plus an index of the verified class names that can be read instead
+ * of probing for each class.
+ */
 public class ClassVerifier {
 
-    
+    static final String INDEX = "META-INF/verified-classes.txt";
+    private static final String PREFIX = "org/jpc/dynamic/";
+    /** Classes verified by one task before it stops splitting its range. */
+    private static final int BATCH = 64;
+    /** Entry timestamp for reproducible output (2010-01-01T00:00:00Z). */
+    private static final long TIMESTAMP = 1262304000000L;
+
     public static void main(String[] args) throws IOException {
-        if (args.length != 1)
+        if (args.length < 1 || args.length > 2)
         {
-            System.out.println("Usage: java ClassVerifier inputjar.jar");
+            System.out.println("Usage: java ClassVerifier inputjar.jar [outputjar.jar]");
             System.exit(0);
         }
 
-        JarInputStream in = new JarInputStream(new FileInputStream(args[0]));
-        JarOutputStream out = new JarOutputStream(new FileOutputStream(new File("outclasses.jar")));
+        final Map<String, byte[]> classes = read(args[0]);
+        final List<String> names = new ArrayList<String>(classes.keySet());
+        final boolean[] verified = new boolean[names.size()];
+        final VerifyingLoader loader = new VerifyingLoader(classes);
+        final long start = System.currentTimeMillis();
+        new ForkJoinPool().invoke(new Verify(loader, names, verified, 0, names.size()));
+
+        final List<String> accepted = new ArrayList<String>();
+        for (int i = 0; i < names.size(); i++) {
+            if (verified[i])
+                accepted.add(names.get(i));
+        }
+        write(args.length > 1 ? args[1] : "outclasses.jar", classes, accepted);
+        System.out.println("Verified " + accepted.size() + " of " + names.size() + " classes in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /** Reads every org.jpc.dynamic class in the jar, keyed and sorted by class name. */
+    static Map<String, byte[]> read(String jar) throws IOException {
+        final Map<String, byte[]> classes = new TreeMap<String, byte[]>();
+        final JarInputStream in = new JarInputStream(new BufferedInputStream(new FileInputStream(jar), 64 * 1024));
+        try {
+            final byte[] buffer = new byte[16 * 1024];
+            JarEntry entry = null;
+            while ((entry = in.getNextJarEntry()) != null) {
+                final String name = entry.getName();
+                if (entry.isDirectory() || !name.startsWith(PREFIX) || !name.endsWith(".class"))
+                    continue;
+                classes.put(name.substring(0, name.length() - 6).replace('/', '.'), readFully(in, buffer));
+            }
+        } finally {
+            in.close();
+        }
+        return classes;
+    }
+
+    private static byte[] readFully(InputStream in, byte[] buffer) throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bout.write(buffer, 0, count);
+        }
+        return bout.toByteArray();
+    }
+
+    static void write(String jar, Map<String, byte[]> classes, List<String> accepted) throws IOException {
+        final JarOutputStream out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(jar), 64 * 1024));
+        try {
+            final StringBuilder index = new StringBuilder();
+            for (String name : accepted) {
+                putEntry(out, name.replace('.', '/') + ".class", classes.get(name));
+                index.append(name).append('\n');
+            }
+            putEntry(out, INDEX, index.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void putEntry(JarOutputStream out, String name, byte[] data) throws IOException {
+        final JarEntry entry = new JarEntry(name);
+        entry.setTime(TIMESTAMP);
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    /** Verifies names[from, to), splitting the range across the pool. */
+    static class Verify extends RecursiveAction {
+        private final VerifyingLoader loader;
+        private final List<String> names;
+        private final boolean[] verified;
+        private final int from, to;
+
+        Verify(VerifyingLoader loader, List<String> names, boolean[] verified, int from, int to) {
+            this.loader = loader;
+            this.names = names;
+            this.verified = verified;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > BATCH) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new Verify(loader, names, verified, from, middle),
+                        new Verify(loader, names, verified, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                verified[i] = verify(names.get(i));
+            }
+        }
 
-        JarEntry entry = null;
-        while ((entry = in.getNextJarEntry()) != null) {
-            if (entry.isDirectory())
-                continue;
-            String name = entry.getName();
-            name = name.replace("org/jpc/dynamic/", "org.jpc.dynamic.");
-            name = name.replace(".class", "");
+        private boolean verify(String name) {
             try {
-                Class.forName(name).newInstance();
-                out.putNextEntry(entry);
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                int data = 0;
-                while ((data = in.read()) != -1) {
-                    bout.write(data);
-                }
-                out.write(bout.toByteArray());
-                out.flush();
-                out.closeEntry();
+                Class.forName(name, true, loader).newInstance();
+                return true;
             } catch (ClassNotFoundException e) { e.printStackTrace();}
             catch (IllegalAccessException e) {e.printStackTrace();}
             catch (InstantiationException e) {e.printStackTrace();}
-            catch (VerifyError e) {
-                System.out.println("Ignoring class: " + name);
+            catch (LinkageError e) {
+                // verification, missing or changed dependencies, failed static initialisers
+                System.out.println("Ignoring class: " + name + " (" + e + ")");
             }
+            return false;
+        }
+    }
+
+    /**
+     * Defines the classes from the jar being verified rather than from the
+     * classpath, so the jar need not be on it; everything else, such as the
+     * JPC core the blocks link against, comes from the parent loader.
+     */
+    static class VerifyingLoader extends ClassLoader {
+        static {
+            registerAsParallelCapable();
+        }
+
+        private final Map<String, byte[]> classes;
+
+        VerifyingLoader(Map<String, byte[]> classes) {
+            super(ClassVerifier.class.getClassLoader());
+            this.classes = Collections.unmodifiableMap(classes);
+        }
+
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            final byte[] data = classes.get(name);
+            if (data == null)
+                throw new ClassNotFoundException(name);
+            return defineClass(name, data, 0, data.length);
         }
-        out.close();
     }
 }
@@ -136,6 +136,11 @@ public class PCScreen extends Canvas implements GraphicsDisplay
         ymax = Math.max(y2, ymax);
     }
 
+    public boolean isDirty()
+    {
+        return (xmax > xmin) && (ymax > ymin);
+    }
+
     public void blitUpdatesToScreen()
     {
         repaint(xmin, ymin, xmax - xmin + 1, ymax - ymin + 1);
@@ -57,19 +57,31 @@ public class PCThread extends Thread
 
     class Updater extends Thread
     {
+        // the original fixed poll rate; animation never repaints faster than this
+        private static final long MIN_DELAY = 500;
+        private static final long MAX_DELAY = 2000;
+
         public void run()
         {
             VGACard vgaCard = (VGACard)pc.getComponent(VGACard.class);
+            long delay = MIN_DELAY;
 
             while (running)
             {
                 try
                 {
-                    Thread.sleep(500);
+                    Thread.sleep(delay);
                     screen.prepareUpdate();
                     vgaCard.updateDisplay(screen);
-                    
-                    screen.blitUpdatesToScreen();
+
+                    // back off while the screen is static, repaint promptly while it animates
+                    if (screen.isDirty())
+                    {
+                        screen.blitUpdatesToScreen();
+                        delay = MIN_DELAY;
+                    }
+                    else
+                        delay = Math.min(2*delay, MAX_DELAY);
                 }
                 catch (InterruptedException e) {}
                 catch (Throwable t) 
@@ -0,0 +1,320 @@
+package uk.co.jads.android.jpc;
+
+import org.jpc.support.SeekableIODevice;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Disk image stored as independently deflated fixed-size blocks with an
+ * offset index, so the emulator only ever decompresses the blocks the guest
+ * actually reads. The compressed image is never written to: guest writes go
+ * to an overlay file holding whole copies of the modified blocks, which lets
+ * one read-only base image be shared while every user keeps their own
+ * changes.
+ *
+ * Image layout: magic, block size, image length, block count, CRC-32 of the
+ * uncompressed image, then blockCount + 1 absolute offsets; block i occupies
+ * [offset[i], offset[i+1]). An empty block reads as zeros and a block of
+ * exactly block size bytes is stored uncompressed.
+ *
+ * Overlay layout: magic, block size, then the image length and CRC-32 from
+ * the image header, then records of a block number followed by the full
+ * block. The last record for a block wins. An overlay whose header does not
+ * match the image, e.g. after an update replaced the image, is set aside as
+ * ".stale" and a new one started, as its blocks would corrupt the new image.
+ */
+class BlockImageDevice implements SeekableIODevice {
+    static final String EXTENSION = ".cbi";
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    private static final long IMAGE_MAGIC = 0x4a5043424c4b3032L;
+    private static final long OVERLAY_MAGIC = 0x4a50434f564c3032L;
+    private static final int IMAGE_HEADER = 8 + 4 + 8 + 4 + 4;
+    private static final int OVERLAY_HEADER = 8 + 4 + 8 + 4;
+    private static final int CACHED_BLOCKS = 32;
+
+    private RandomAccessFile image;
+    private RandomAccessFile overlay;
+    private int blockSize;
+    private long length;
+    private long[] offsets;
+    /** CRC-32 of the uncompressed image, identifying its contents. */
+    private int crc;
+    /** Per block, the file offset of its newest copy in the overlay, or -1. */
+    private long[] overlaid;
+    private long position;
+    private final Inflater inflater = new Inflater();
+    private byte[] compressed;
+    private final Map<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(CACHED_BLOCKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Integer, byte[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    BlockImageDevice() {
+    }
+
+    /**
+     * @param overlay file receiving guest writes, created if missing; null
+     *                opens the image read-only
+     */
+    BlockImageDevice(final File image, final File overlay) throws IOException {
+        open(image, overlay);
+    }
+
+    /** Accepts "image.cbi" for a read-only device or "image.cbi,overlay" for a writable one. */
+    @Override
+    public void configure(final String spec) throws IOException {
+        final int comma = spec.indexOf(',');
+        if (comma < 0) {
+            open(new File(spec), null);
+        } else {
+            open(new File(spec.substring(0, comma)), new File(spec.substring(comma + 1)));
+        }
+    }
+
+    private void open(final File imageFile, final File overlayFile) throws IOException {
+        close();
+        image = new RandomAccessFile(imageFile, "r");
+        if (image.readLong() != IMAGE_MAGIC) {
+            close();
+            throw new IOException(imageFile + " is not a block image");
+        }
+        blockSize = image.readInt();
+        length = image.readLong();
+        final int blocks = image.readInt();
+        crc = image.readInt();
+        final byte[] index = new byte[8 * (blocks + 1)];
+        image.readFully(index);
+        offsets = new long[blocks + 1];
+        ByteBuffer.wrap(index).asLongBuffer().get(offsets);
+        compressed = new byte[blockSize];
+        overlaid = new long[blocks];
+        Arrays.fill(overlaid, -1);
+        if (overlayFile != null) {
+            openOverlay(overlayFile);
+        }
+    }
+
+    private void openOverlay(final File overlayFile) throws IOException {
+        overlay = new RandomAccessFile(overlayFile, "rw");
+        if (overlay.length() > 0 && (overlay.length() < OVERLAY_HEADER || overlay.readLong() != OVERLAY_MAGIC
+                || overlay.readInt() != blockSize || overlay.readLong() != length || overlay.readInt() != crc)) {
+            overlay.close();
+            overlay = null;
+            final File stale = new File(overlayFile.getPath() + ".stale");
+            if (stale.exists() && !stale.delete() || !overlayFile.renameTo(stale)) {
+                throw new IOException(overlayFile + " is not an overlay for this image and cannot be set aside");
+            }
+            overlay = new RandomAccessFile(overlayFile, "rw");
+        }
+        if (overlay.length() < OVERLAY_HEADER) {
+            overlay.setLength(0);
+            overlay.writeLong(OVERLAY_MAGIC);
+            overlay.writeInt(blockSize);
+            overlay.writeLong(length);
+            overlay.writeInt(crc);
+            return;
+        }
+        final long records = (overlay.length() - OVERLAY_HEADER) / (4 + blockSize);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(overlayFile)));
+        try {
+            in.skipBytes(OVERLAY_HEADER);
+            for (long r = 0; r < records; r++) {
+                final int block = in.readInt();
+                if (block >= 0 && block < overlaid.length) {
+                    overlaid[block] = OVERLAY_HEADER + r * (4 + blockSize) + 4;
+                }
+                in.skipBytes(blockSize);
+            }
+        } finally {
+            in.close();
+        }
+        // drop a record torn by a crash part way through an append
+        overlay.setLength(OVERLAY_HEADER + records * (4 + blockSize));
+    }
+
+    @Override
+    public void seek(final long offset) throws IOException {
+        position = offset;
+    }
+
+    @Override
+    public int read(final byte[] data, int offset, final int length) throws IOException {
+        final int count = (int) Math.max(0, Math.min(length, this.length - position));
+        for (int remaining = count; remaining > 0; ) {
+            final int block = (int) (position / blockSize);
+            final int start = (int) (position % blockSize);
+            final int n = Math.min(remaining, blockSize - start);
+            if (overlaid[block] >= 0) {
+                overlay.seek(overlaid[block] + start);
+                overlay.readFully(data, offset, n);
+            } else {
+                System.arraycopy(block(block), start, data, offset, n);
+            }
+            position += n;
+            offset += n;
+            remaining -= n;
+        }
+        return count;
+    }
+
+    @Override
+    public int write(final byte[] data, int offset, final int length) throws IOException {
+        if (overlay == null) {
+            throw new IOException("Block image is read-only");
+        }
+        final int count = (int) Math.max(0, Math.min(length, this.length - position));
+        for (int remaining = count; remaining > 0; ) {
+            final int block = (int) (position / blockSize);
+            final int start = (int) (position % blockSize);
+            final int n = Math.min(remaining, blockSize - start);
+            if (overlaid[block] < 0) {
+                // first write to this block: copy it into the overlay before modifying it
+                final long record = overlay.length();
+                overlay.seek(record);
+                overlay.writeInt(block);
+                overlay.write(block(block));
+                overlaid[block] = record + 4;
+                cache.remove(block);
+            }
+            overlay.seek(overlaid[block] + start);
+            overlay.write(data, offset, n);
+            position += n;
+            offset += n;
+            remaining -= n;
+        }
+        return count;
+    }
+
+    /** Returns the decompressed contents of a block from the base image. */
+    private byte[] block(final int block) throws IOException {
+        byte[] data = cache.get(block);
+        if (data != null) {
+            return data;
+        }
+        data = new byte[blockSize];
+        final int stored = (int) (offsets[block + 1] - offsets[block]);
+        if (stored == blockSize) {
+            image.seek(offsets[block]);
+            image.readFully(data);
+        } else if (stored > 0) {
+            image.seek(offsets[block]);
+            image.readFully(compressed, 0, stored);
+            inflater.reset();
+            inflater.setInput(compressed, 0, stored);
+            try {
+                if (inflater.inflate(data) != Math.min(blockSize, length - (long) block * blockSize)) {
+                    throw new IOException("Corrupt block " + block + " in block image");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block " + block + " in block image: " + e.getMessage());
+            }
+        }
+        cache.put(block, data);
+        return data;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean readOnly() {
+        return overlay == null;
+    }
+
+    public void close() throws IOException {
+        cache.clear();
+        if (image != null) {
+            image.close();
+            image = null;
+        }
+        if (overlay != null) {
+            overlay.close();
+            overlay = null;
+        }
+    }
+
+    /** Compresses a raw disk image into the block format. */
+    static void create(final File raw, final File out, final int blockSize) throws IOException {
+        final long length = raw.length();
+        final int blocks = (int) ((length + blockSize - 1) / blockSize);
+        final long[] offsets = new long[blocks + 1];
+        final RandomAccessFile output = new RandomAccessFile(out, "rw");
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(raw), blockSize));
+        try {
+            output.setLength(0);
+            output.writeLong(IMAGE_MAGIC);
+            output.writeInt(blockSize);
+            output.writeLong(length);
+            output.writeInt(blocks);
+            output.seek(IMAGE_HEADER + 8L * (blocks + 1));
+            final byte[] block = new byte[blockSize];
+            final byte[] packed = new byte[blockSize];
+            final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            final CRC32 crc = new CRC32();
+            for (int i = 0; i < blocks; i++) {
+                offsets[i] = output.getFilePointer();
+                final int n = (int) Math.min(blockSize, length - (long) i * blockSize);
+                Arrays.fill(block, (byte) 0);
+                input.readFully(block, 0, n);
+                crc.update(block, 0, n);
+                if (isZero(block)) {
+                    continue;
+                }
+                deflater.reset();
+                deflater.setInput(block, 0, n);
+                deflater.finish();
+                final int size = deflater.deflate(packed);
+                if (deflater.finished() && size < blockSize) {
+                    output.write(packed, 0, size);
+                } else {
+                    output.write(block);
+                }
+            }
+            deflater.end();
+            offsets[blocks] = output.getFilePointer();
+            final ByteBuffer index = ByteBuffer.allocate(8 * offsets.length);
+            index.asLongBuffer().put(offsets);
+            output.seek(IMAGE_HEADER - 4);
+            output.writeInt((int) crc.getValue());
+            output.write(index.array());
+        } finally {
+            input.close();
+            output.close();
+        }
+    }
+
+    private static boolean isZero(final byte[] block) {
+        for (final byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Usage: BlockImageDevice raw.img out.cbi [blockSize] */
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java uk.co.jads.android.jpc.BlockImageDevice raw.img out" + EXTENSION + " [blockSize]");
+            System.exit(0);
+        }
+        create(new File(args[0]), new File(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_BLOCK_SIZE);
+    }
+}
@@ -0,0 +1,101 @@
+package uk.co.jads.android.jpc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The set of on-screen buttons, top to bottom, as plain data. The default
+ * set is the original four; others are text files read by {@link #load}:
+ * <pre>
+ * # action [argument] label
+ * keyboard Keyboard        shows or hides the soft keyboard when released
+ * mouse 1 Left mouse       holds PS/2 mouse button bits while pressed
+ * key 01 Esc               holds a key, scancode bytes as in {@link KeyMapping}
+ * key e0 48 Up
+ * </pre>
+ */
+final class ButtonLayout {
+    static final int KEYBOARD = 0;
+    static final int MOUSE = 1;
+    static final int KEY = 2;
+    /** Button state is kept as bits of an int. */
+    static final int MAX_BUTTONS = 32;
+
+    final String[] labels;
+    final int[] actions;
+    /** Mouse button bits or scancode, depending on the action. */
+    final int[] arguments;
+
+    private ButtonLayout(final List<String> labels, final List<Integer> actions, final List<Integer> arguments) {
+        final int count = labels.size();
+        this.labels = labels.toArray(new String[count]);
+        this.actions = new int[count];
+        this.arguments = new int[count];
+        for (int i = 0; i < count; i++) {
+            this.actions[i] = actions.get(i);
+            this.arguments[i] = arguments.get(i);
+        }
+    }
+
+    int size() {
+        return labels.length;
+    }
+
+    static ButtonLayout createDefault() {
+        return new ButtonLayout(Arrays.asList("Keyboard", "Left mouse", "Right mouse", "Esc"),
+                Arrays.asList(KEYBOARD, MOUSE, MOUSE, KEY), Arrays.asList(0, 1, 2, 1));
+    }
+
+    static ButtonLayout load(final Reader in) throws IOException {
+        final List<String> labels = new ArrayList<String>();
+        final List<Integer> actions = new ArrayList<Integer>();
+        final List<Integer> arguments = new ArrayList<Integer>();
+        final BufferedReader reader = new BufferedReader(in);
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            final String[] fields = line.trim().split("\\s+");
+            if (fields[0].isEmpty() || fields[0].startsWith("#")) {
+                continue;
+            }
+            try {
+                final int labelStart;
+                if (fields[0].equals("keyboard")) {
+                    actions.add(KEYBOARD);
+                    arguments.add(0);
+                    labelStart = 1;
+                } else if (fields[0].equals("mouse")) {
+                    actions.add(MOUSE);
+                    arguments.add(Integer.parseInt(fields[1]) & 7);
+                    labelStart = 2;
+                } else if (fields[0].equals("key")) {
+                    final boolean extended = fields[1].equalsIgnoreCase("e0");
+                    labelStart = extended ? 3 : 2;
+                    actions.add(KEY);
+                    arguments.add(KeyMapping.scancode(Arrays.copyOfRange(fields, 1, labelStart)));
+                } else {
+                    throw new IOException("unknown action");
+                }
+                if (labelStart >= fields.length) {
+                    throw new IOException("no label");
+                }
+                final StringBuilder label = new StringBuilder(fields[labelStart]);
+                for (int i = labelStart + 1; i < fields.length; i++) {
+                    label.append(' ').append(fields[i]);
+                }
+                labels.add(label.toString());
+            } catch (RuntimeException | IOException e) {
+                throw new IOException("Bad button layout entry at line " + number + ": " + line, e);
+            }
+        }
+        if (labels.isEmpty() || labels.size() > MAX_BUTTONS) {
+            throw new IOException("A button layout needs 1 to " + MAX_BUTTONS + " buttons");
+        }
+        return new ButtonLayout(labels, actions, arguments);
+    }
+}
@@ -0,0 +1,101 @@
+package uk.co.jads.android.jpc;
+
+/**
+ * Bounding box of the part of the display that changed since the last
+ * {@link #clear()}, kept the same way cldc.PCScreen tracks its repaint area.
+ * Coordinates are clipped to the display and the right/bottom edges are
+ * exclusive.
+ */
+class DirtyRegion {
+    private int width;
+    private int height;
+    private int xmin, xmax, ymin, ymax;
+
+    DirtyRegion(final int width, final int height) {
+        resize(width, height);
+    }
+
+    void resize(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+        clear();
+    }
+
+    void clear() {
+        xmin = width;
+        xmax = 0;
+        ymin = height;
+        ymax = 0;
+    }
+
+    void addAll() {
+        xmin = 0;
+        xmax = width;
+        ymin = 0;
+        ymax = height;
+    }
+
+    void add(final int x, final int y, final int w, final int h) {
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        final int x1 = Math.max(0, x);
+        final int y1 = Math.max(0, y);
+        final int x2 = Math.min(x + w, width);
+        final int y2 = Math.min(y + h, height);
+        if (x2 <= x1 || y2 <= y1) {
+            return;
+        }
+        xmin = Math.min(x1, xmin);
+        xmax = Math.max(x2, xmax);
+        ymin = Math.min(y1, ymin);
+        ymax = Math.max(y2, ymax);
+    }
+
+    void add(final DirtyRegion other) {
+        if (!other.isEmpty()) {
+            add(other.xmin, other.ymin, other.xmax - other.xmin, other.ymax - other.ymin);
+        }
+    }
+
+    void set(final DirtyRegion other) {
+        width = other.width;
+        height = other.height;
+        xmin = other.xmin;
+        xmax = other.xmax;
+        ymin = other.ymin;
+        ymax = other.ymax;
+    }
+
+    boolean isEmpty() {
+        return xmax <= xmin || ymax <= ymin;
+    }
+
+    int getLeft() {
+        return xmin;
+    }
+
+    int getTop() {
+        return ymin;
+    }
+
+    int getRight() {
+        return xmax;
+    }
+
+    int getBottom() {
+        return ymax;
+    }
+
+    int getWidth() {
+        return isEmpty() ? 0 : xmax - xmin;
+    }
+
+    int getHeight() {
+        return isEmpty() ? 0 : ymax - ymin;
+    }
+
+    int getArea() {
+        return getWidth() * getHeight();
+    }
+}
@@ -0,0 +1,300 @@
+package uk.co.jads.android.jpc;
+
+/**
+ * Scales the guest display to the size it is shown at. All the arithmetic
+ * happens up front: every output column and row gets the source column or
+ * row it samples (and for smooth scaling a second one and a blend weight),
+ * and every source column and row gets the span of output it feeds, so
+ * scaling a dirty rectangle is a pair of table lookups per pixel and never
+ * touches output outside it. A scaler is immutable apart from scratch rows;
+ * a new one is built whenever the guest mode, the view size or the scaling
+ * mode changes.
+ *
+ * The output is kept to {@link #MAX_PIXELS}: on a large view the display is
+ * scaled to a smaller size, a whole fraction of the size in INTEGER mode,
+ * and the view stretches that the rest of the way when drawing it.
+ *
+ * The modes are:
+ * <ul>
+ * <li>NONE: unscaled at the top left corner, clipped by the view;</li>
+ * <li>INTEGER: the largest whole multiple that fits, centred, or a fit
+ * with square pixels when even the unscaled display does not fit;</li>
+ * <li>ASPECT: nearest neighbour to the largest centred 4:3 area, the shape
+ * a monitor gave every VGA mode, including 320x200 and 720x400;</li>
+ * <li>SMOOTH: as ASPECT, but bilinear.</li>
+ * </ul>
+ */
+final class DisplayScaler {
+    static final int NONE = 0;
+    static final int INTEGER = 1;
+    static final int ASPECT = 2;
+    static final int SMOOTH = 3;
+    static final String[] MODE_NAMES = {"none", "integer", "aspect", "smooth"};
+    private static final int OPAQUE = FrameConverter.OPAQUE;
+    /** Blend weights are in 1/256ths. */
+    private static final int WEIGHT_BITS = 8;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    /** Largest output, in pixels; the display keeps a few frames of it. */
+    static final int MAX_PIXELS = 800 * 600;
+
+    private final int mode;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final int width;
+    private final int height;
+    private final int drawWidth;
+    private final int drawHeight;
+    private final int x;
+    private final int y;
+    private final Axis columns;
+    private final Axis rows;
+    /** Horizontally blended source rows for smooth scaling, with the source row each holds. */
+    private int[] upper;
+    private int[] lower;
+    private int upperRow = -1;
+    private int lowerRow = -1;
+
+    /** Source and output indices along one axis. */
+    private static final class Axis {
+        /** First and second source index sampled by each output index; equal when not blending. */
+        final int[] first;
+        final int[] second;
+        /** Weight of the second sample, or null when not blending. */
+        final int[] weights;
+        /** For each source index s, the first output index sampling anything at or after s; one extra entry. */
+        final int[] start;
+        /** For each source index s, the first output index sampling only at or after s; one extra entry. */
+        final int[] end;
+
+        Axis(final int source, final int output, final boolean smooth) {
+            first = new int[output];
+            second = smooth ? new int[output] : first;
+            weights = smooth ? new int[output] : null;
+            for (int i = 0; i < output; i++) {
+                if (smooth) {
+                    // centre of output pixel i, in source pixels, less half a pixel
+                    final long position = Math.max(0, ((2L * i + 1) * source << WEIGHT_BITS) / (2L * output) - WEIGHT_ONE / 2);
+                    final int index = (int) (position >> WEIGHT_BITS);
+                    first[i] = Math.min(index, source - 1);
+                    second[i] = Math.min(index + 1, source - 1);
+                    weights[i] = (int) position & (WEIGHT_ONE - 1);
+                } else {
+                    first[i] = (int) ((2L * i + 1) * source / (2L * output));
+                }
+            }
+            start = new int[source + 1];
+            end = new int[source + 1];
+            int s = 0;
+            int e = 0;
+            for (int index = 0; index <= source; index++) {
+                while (s < output && second[s] < index) {
+                    s++;
+                }
+                while (e < output && first[e] < index) {
+                    e++;
+                }
+                start[index] = s;
+                end[index] = e;
+            }
+        }
+    }
+
+    /**
+     * @param viewWidth  width of the area the display is shown in; when it
+     *                   or viewHeight is not positive the display is not scaled
+     */
+    DisplayScaler(final int mode, final int sourceWidth, final int sourceHeight, final int viewWidth, final int viewHeight) {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        int w = sourceWidth;
+        int h = sourceHeight;
+        int m = viewWidth > 0 && viewHeight > 0 ? mode : NONE;
+        int factor = 0;
+        if (m == INTEGER) {
+            factor = Math.min(viewWidth / sourceWidth, viewHeight / sourceHeight);
+            if (factor >= 1) {
+                w = factor * sourceWidth;
+                h = factor * sourceHeight;
+            } else {
+                w = Math.min(viewWidth, viewHeight * sourceWidth / sourceHeight);
+                h = Math.min(viewHeight, viewWidth * sourceHeight / sourceWidth);
+            }
+        } else if (m == ASPECT || m == SMOOTH) {
+            w = Math.min(viewWidth, viewHeight * 4 / 3);
+            h = Math.min(viewHeight, viewWidth * 3 / 4);
+        }
+        if (w < 1 || h < 1 || (w == sourceWidth && h == sourceHeight)) {
+            w = sourceWidth;
+            h = sourceHeight;
+            if (m != NONE) {
+                // nothing to scale, but keep the display centred
+                m = INTEGER;
+            }
+        }
+        this.mode = m;
+        this.drawWidth = w;
+        this.drawHeight = h;
+        this.x = m == NONE ? 0 : Math.max(0, (viewWidth - w) / 2);
+        this.y = m == NONE ? 0 : Math.max(0, (viewHeight - h) / 2);
+        if (m != NONE && (long) w * h > MAX_PIXELS) {
+            if (factor > 1 && w == factor * sourceWidth) {
+                // the largest whole multiple that divides the shown one and fits
+                int k = factor - 1;
+                while (k > 1 && (factor % k != 0 || (long) k * k * sourceWidth * sourceHeight > MAX_PIXELS)) {
+                    k--;
+                }
+                w = k * sourceWidth;
+                h = k * sourceHeight;
+            } else {
+                final double shrink = Math.sqrt((double) MAX_PIXELS / ((long) w * h));
+                w = Math.max((int) (w * shrink), Math.min(w, sourceWidth));
+                h = Math.max((int) (h * shrink), Math.min(h, sourceHeight));
+            }
+        }
+        this.width = w;
+        this.height = h;
+        final boolean smooth = m == SMOOTH;
+        columns = new Axis(sourceWidth, w, smooth);
+        rows = new Axis(sourceHeight, h, smooth);
+    }
+
+    int getMode() {
+        return mode;
+    }
+
+    /** Size of the scaled display. */
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /** Size the scaled display is shown at; larger than it when the output was capped. */
+    int getDrawWidth() {
+        return drawWidth;
+    }
+
+    int getDrawHeight() {
+        return drawHeight;
+    }
+
+    /** True when the scaled display has to be stretched to be shown. */
+    boolean isStretched() {
+        return width != drawWidth || height != drawHeight;
+    }
+
+    /** Where the scaled display goes in the view. */
+    int getX() {
+        return x;
+    }
+
+    int getY() {
+        return y;
+    }
+
+    /** True when the output is the source pixel for pixel. */
+    boolean isIdentity() {
+        return width == sourceWidth && height == sourceHeight;
+    }
+
+    /** Replaces output with the part of the scaled display that a change to source covers. */
+    void map(final DirtyRegion source, final DirtyRegion output) {
+        output.resize(width, height);
+        if (source.isEmpty()) {
+            return;
+        }
+        final int left = columns.start[Math.min(source.getLeft(), sourceWidth)];
+        final int right = columns.end[Math.min(source.getRight(), sourceWidth)];
+        final int top = rows.start[Math.min(source.getTop(), sourceHeight)];
+        final int bottom = rows.end[Math.min(source.getBottom(), sourceHeight)];
+        output.add(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * Writes the opaque scaled pixels of an output rectangle to dst.
+     *
+     * @param area the rectangle, in output coordinates, e.g. from {@link #map}
+     */
+    void scale(final int[] src, final int srcStride, final DirtyRegion area,
+               final int[] dst, final int dstOffset, final int dstStride) {
+        if (area.isEmpty()) {
+            return;
+        }
+        if (mode == SMOOTH) {
+            scaleSmooth(src, srcStride, area, dst, dstOffset, dstStride);
+            return;
+        }
+        final int left = area.getLeft();
+        final int w = area.getWidth();
+        final int[] sourceColumns = columns.first;
+        int previous = -1;
+        for (int row = area.getTop(), d = dstOffset; row < area.getBottom(); row++, d += dstStride) {
+            final int sourceRow = rows.first[row];
+            if (sourceRow == previous) {
+                // repeated rows of a scaled-up display are copied whole
+                System.arraycopy(dst, d - dstStride, dst, d, w);
+                continue;
+            }
+            previous = sourceRow;
+            final int s = sourceRow * srcStride;
+            for (int i = 0; i < w; i++) {
+                dst[d + i] = src[s + sourceColumns[left + i]] | OPAQUE;
+            }
+        }
+    }
+
+    private void scaleSmooth(final int[] src, final int srcStride, final DirtyRegion area,
+                             final int[] dst, final int dstOffset, final int dstStride) {
+        final int left = area.getLeft();
+        final int w = area.getWidth();
+        if (upper == null || upper.length < width) {
+            upper = new int[width];
+            lower = new int[width];
+        }
+        // the scratch rows only hold the columns of this rectangle
+        upperRow = lowerRow = -1;
+        for (int row = area.getTop(), d = dstOffset; row < area.getBottom(); row++, d += dstStride) {
+            final int first = rows.first[row];
+            final int second = rows.second[row];
+            if (first != upperRow) {
+                if (first == lowerRow) {
+                    final int[] swap = upper;
+                    upper = lower;
+                    lower = swap;
+                    upperRow = first;
+                    lowerRow = -1;
+                } else {
+                    blendRow(src, first * srcStride, left, w, upper);
+                    upperRow = first;
+                }
+            }
+            if (second != lowerRow) {
+                blendRow(src, second * srcStride, left, w, lower);
+                lowerRow = second;
+            }
+            final int weight = rows.weights[row];
+            for (int i = 0; i < w; i++) {
+                dst[d + i] = blend(upper[left + i], lower[left + i], weight);
+            }
+        }
+    }
+
+    private void blendRow(final int[] src, final int offset, final int left, final int w, final int[] out) {
+        final int[] first = columns.first;
+        final int[] second = columns.second;
+        final int[] weights = columns.weights;
+        for (int i = left, end = left + w; i < end; i++) {
+            out[i] = blend(src[offset + first[i]], src[offset + second[i]], weights[i]);
+        }
+    }
+
+    /** Mixes two RGB pixels, weight/256 of b; red and blue are done together. */
+    private static int blend(final int a, final int b, final int weight) {
+        final int inverse = WEIGHT_ONE - weight;
+        final int redBlue = ((a & 0xff00ff) * inverse + (b & 0xff00ff) * weight) >>> WEIGHT_BITS & 0xff00ff;
+        final int green = ((a & 0xff00) * inverse + (b & 0xff00) * weight) >>> WEIGHT_BITS & 0xff00;
+        return OPAQUE | redBlue | green;
+    }
+}
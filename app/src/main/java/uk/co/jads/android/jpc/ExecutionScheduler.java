@@ -0,0 +1,284 @@
+package uk.co.jads.android.jpc;
+
+import android.util.Log;
+
+import org.jpc.emulator.PC;
+import org.jpc.emulator.memory.PhysicalAddressSpace;
+import org.jpc.emulator.peripheral.Keyboard;
+import org.jpc.emulator.processor.Processor;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Drives the emulation thread in time slices. Within a slice pc.execute() is
+ * called in batches; the clock is only read between batches, and the batch
+ * size adapts so that one batch takes a small fraction of the slice. Between
+ * batches the thread notices posted tasks and pause requests, so those are
+ * served within roughly one batch time instead of whenever the guest
+ * happens to stop, and between slices it yields to the display and input
+ * threads. Queued input is treated the same way and delivered to the guest
+ * at the end of the slice.
+ *
+ * Every slice ends with a short probe that collects the distinct block
+ * addresses the guest runs. A real mode guest counts as idle only if that
+ * footprint is small and shows it waiting: halted after a HLT, or polling
+ * through INT 16h or INT 28h. A small footprint alone is not enough, as
+ * tight copy, delay and game loops have one too. Neither is running in the
+ * BIOS ROM, which also holds POST and the disk and delay services. Once
+ * the guest has been idle for a number of slices the thread stops burning
+ * the CPU: it alternates single probes with naps growing up to a bound
+ * well below the PIT tick, and leaves that mode as soon as the guest does
+ * something else or input arrives through {@link #wake}. A busy guest is
+ * never napped.
+ */
+final class ExecutionScheduler {
+    static final long SLICE_NS = 10 * 1000000L;
+    /** A batch should take between 1/BATCH_LOW and 1/BATCH_HIGH of a slice. */
+    private static final int BATCH_HIGH = 4;
+    private static final int BATCH_LOW = 16;
+    private static final int MIN_BATCH = 1;
+    private static final int MAX_BATCH = 1 << 16;
+    /** A guest touching more block addresses than this during a probe is busy. */
+    static final int IDLE_FOOTPRINT = 8;
+    private static final int PROBE_CALLS = 64;
+    /** Consecutive idle-looking slices before the thread starts napping. */
+    static final int IDLE_SLICES = 10;
+    static final long MAX_NAP_MS = 20;
+    private static final int HLT = 0xf4;
+    private static final int INT = 0xcd;
+
+    private final PC pc;
+    private final Processor processor;
+    private final PhysicalAddressSpace memory;
+    private final Keyboard keyboard;
+    private final InputQueue input;
+    private final int[] footprint = new int[IDLE_FOOTPRINT];
+    private int idleSlices;
+    /** Set by {@link #wake}, guarded by lock. */
+    private boolean woken;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Object lock = new Object();
+    private volatile boolean running = true;
+    private volatile boolean pauseRequested;
+    private boolean paused;
+    private int batch = 64;
+
+    ExecutionScheduler(final PC pc, final InputQueue input) {
+        this.pc = pc;
+        this.processor = (Processor) pc.getComponent(Processor.class);
+        this.memory = (PhysicalAddressSpace) pc.getComponent(PhysicalAddressSpace.class);
+        this.keyboard = (Keyboard) pc.getComponent(Keyboard.class);
+        this.input = input;
+    }
+
+    /** The emulation loop; returns once {@link #stop} has been called. */
+    void run() {
+        pc.start();
+        try {
+            while (running) {
+                if (idleSlices >= IDLE_SLICES) {
+                    idle();
+                } else {
+                    runSlice();
+                }
+                try {
+                    input.drain(keyboard);
+                } catch (IOException e) {
+                    Log.w("JPC", "Input trace write failed, recording stopped", e);
+                }
+                runTasks();
+                if (pauseRequested) {
+                    park();
+                }
+                Thread.yield();
+            }
+        } finally {
+            pc.stop();
+        }
+    }
+
+    private void runSlice() {
+        final long start = System.nanoTime();
+        long executed = 0;
+        int calls = 0;
+        long now;
+        do {
+            for (int i = 0; i < batch; i++) {
+                executed += pc.execute();
+            }
+            calls += batch;
+            now = System.nanoTime();
+        } while (now - start < SLICE_NS && running && !pauseRequested && tasks.isEmpty() && input.isEmpty());
+
+        final long elapsed = now - start;
+        final long perBatch = elapsed * batch / calls;
+        if (perBatch > SLICE_NS / BATCH_HIGH) {
+            batch = Math.max(MIN_BATCH, batch / 2);
+        } else if (perBatch < SLICE_NS / BATCH_LOW) {
+            batch = Math.min(MAX_BATCH, batch * 2);
+        }
+        Metrics.INSTRUCTIONS.add(executed);
+        Metrics.EXECUTE_SLICE.recordNanos(elapsed);
+        idleSlices = probe() ? idleSlices + 1 : 0;
+    }
+
+    /**
+     * Runs a few blocks and tells whether the guest looks like it is waiting:
+     * they all started at one of a handful of addresses, and at least one of
+     * those is a waiting place, see {@link #isWaiting}.
+     */
+    private boolean probe() {
+        if (processor == null || memory == null) {
+            return false;
+        }
+        boolean waiting = false;
+        int distinct = 0;
+        for (int i = 0; i < PROBE_CALLS; i++) {
+            final int address = processor.getInstructionPointer();
+            int j = 0;
+            while (j < distinct && footprint[j] != address) {
+                j++;
+            }
+            if (j == distinct) {
+                if (distinct == IDLE_FOOTPRINT) {
+                    return false;
+                }
+                footprint[distinct++] = address;
+                waiting |= isWaiting(address);
+            }
+            Metrics.INSTRUCTIONS.add(pc.execute());
+        }
+        return waiting;
+    }
+
+    /**
+     * Whether a block address is where a real mode guest waits for something
+     * to happen: at or just past a HLT, or just past an INT 16h or INT 28h,
+     * where keyboard and DOS idle polls return to. Protected mode guests are never considered waiting,
+     * as their addresses are not physical.
+     */
+    private boolean isWaiting(final int address) {
+        if (processor.isProtectedMode()) {
+            return false;
+        }
+        if (byteAt(address) == HLT || byteAt(address - 1) == HLT) {
+            return true;
+        }
+        final int vector = byteAt(address - 1);
+        return byteAt(address - 2) == INT && (vector == 0x16 || vector == 0x28);
+    }
+
+    private int byteAt(final int address) {
+        return address >= 0 ? memory.getByte(address) & 0xff : -1;
+    }
+
+    /** Naps between probes until the guest or the user does something. */
+    private void idle() {
+        long nap = 1;
+        while (running && !pauseRequested && tasks.isEmpty() && input.isEmpty()) {
+            if (!probe() || !nap(nap)) {
+                idleSlices = 0;
+                return;
+            }
+            Metrics.IDLE_TIME.add(nap);
+            nap = Math.min(2 * nap, MAX_NAP_MS);
+        }
+    }
+
+    /** @return false if the nap was cut short by {@link #wake} */
+    private boolean nap(final long millis) {
+        synchronized (lock) {
+            if (!woken) {
+                try {
+                    lock.wait(millis);
+                } catch (InterruptedException ignored) {
+                }
+            }
+            final boolean interrupted = woken;
+            woken = false;
+            return !interrupted;
+        }
+    }
+
+    /**
+     * Ends an idle nap at once, typically because input was just delivered
+     * to the guest. Safe to call from any thread.
+     */
+    void wake() {
+        synchronized (lock) {
+            woken = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /** Stops the PC clock and waits at the slice boundary until resumed. */
+    private void park() {
+        pc.stop();
+        synchronized (lock) {
+            paused = true;
+            lock.notifyAll();
+            while (pauseRequested && running) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            paused = false;
+        }
+        pc.start();
+    }
+
+    /** Runs a task on the emulation thread at the next slice boundary. */
+    void post(final Runnable task) {
+        tasks.add(task);
+        wake();
+    }
+
+    /**
+     * Blocks until the emulation thread has stopped the PC at a slice
+     * boundary, so the machine state can be read or replaced safely.
+     *
+     * @return false if the thread did not pause within the timeout
+     */
+    boolean pause(final long timeoutMillis) throws InterruptedException {
+        synchronized (lock) {
+            pauseRequested = true;
+            lock.notifyAll();
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!paused && running) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                lock.wait(remaining);
+            }
+            return paused;
+        }
+    }
+
+    void resume() {
+        synchronized (lock) {
+            pauseRequested = false;
+            lock.notifyAll();
+        }
+    }
+
+    void stop() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+    }
+
+    int getBatch() {
+        return batch;
+    }
+}
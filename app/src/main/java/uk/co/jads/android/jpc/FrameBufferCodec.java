@@ -0,0 +1,196 @@
+package uk.co.jads.android.jpc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Serialises a display buffer in fixed-size chunks, so saving or loading
+ * never allocates more than one chunk regardless of the display size.
+ *
+ * The stream starts with the pixel count. A non-negative count is followed
+ * by the raw pixels as big-endian ints, which is the format PCMonitor has
+ * always written. A negative count marks a run-length encoded frame: the
+ * number of encoded ints follows, then packets made of a header n and
+ * either n literal pixels (n &gt; 0) or one pixel repeated -n times (n &lt; 0).
+ */
+final class FrameBufferCodec {
+    static final int CHUNK_BYTES = 16 * 1024;
+    /** Shorter runs are cheaper to store as literals. */
+    private static final int MIN_RUN = 3;
+
+    private FrameBufferCodec() {
+    }
+
+    static void write(final int[] pixels, final OutputStream out, final boolean compress) throws IOException {
+        final DataOutputStream output = new DataOutputStream(out);
+        final ChunkWriter writer = new ChunkWriter(out);
+        if (compress) {
+            output.writeInt(-pixels.length);
+            output.writeInt(encode(pixels, null));
+            encode(pixels, writer);
+        } else {
+            output.writeInt(pixels.length);
+            writer.put(pixels, 0, pixels.length);
+        }
+        writer.flush();
+        out.flush();
+    }
+
+    static void read(final int[] pixels, final InputStream in) throws IOException {
+        final DataInputStream input = new DataInputStream(in);
+        final int header = input.readInt();
+        final int len = Math.abs(header);
+        if (len != pixels.length) {
+            throw new IOException("Image size not consistent with saved image state");
+        }
+        if (header >= 0) {
+            new ChunkReader(input, len).get(pixels, 0, len);
+            return;
+        }
+        final ChunkReader reader = new ChunkReader(input, input.readInt());
+        int i = 0;
+        while (i < len) {
+            final int n = reader.get();
+            if (n > 0) {
+                if (n > len - i) {
+                    throw new IOException("Corrupt image state");
+                }
+                reader.get(pixels, i, n);
+                i += n;
+            } else if (n < 0 && -n <= len - i) {
+                final int value = reader.get();
+                for (final int end = i - n; i < end; i++) {
+                    pixels[i] = value;
+                }
+            } else {
+                throw new IOException("Corrupt image state");
+            }
+        }
+    }
+
+    /**
+     * Run-length encodes pixels into writer, or only counts the encoded ints
+     * when writer is null.
+     */
+    private static int encode(final int[] pixels, final ChunkWriter writer) throws IOException {
+        int encoded = 0;
+        int literals = 0;
+        int i = 0;
+        while (i < pixels.length) {
+            int run = 1;
+            while (i + run < pixels.length && pixels[i + run] == pixels[i]) {
+                run++;
+            }
+            if (run < MIN_RUN) {
+                literals += run;
+                i += run;
+                continue;
+            }
+            if (literals > 0) {
+                encoded += 1 + literals;
+                if (writer != null) {
+                    writer.put(literals);
+                    writer.put(pixels, i - literals, literals);
+                }
+                literals = 0;
+            }
+            encoded += 2;
+            if (writer != null) {
+                writer.put(-run);
+                writer.put(pixels[i]);
+            }
+            i += run;
+        }
+        if (literals > 0) {
+            encoded += 1 + literals;
+            if (writer != null) {
+                writer.put(literals);
+                writer.put(pixels, i - literals, literals);
+            }
+        }
+        return encoded;
+    }
+
+    private static final class ChunkWriter {
+        private final OutputStream out;
+        private final ByteBuffer bytes = ByteBuffer.allocate(CHUNK_BYTES);
+        private final IntBuffer ints = bytes.asIntBuffer();
+
+        ChunkWriter(final OutputStream out) {
+            this.out = out;
+        }
+
+        void put(final int value) throws IOException {
+            if (!ints.hasRemaining()) {
+                flush();
+            }
+            ints.put(value);
+        }
+
+        void put(final int[] src, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!ints.hasRemaining()) {
+                    flush();
+                }
+                final int count = Math.min(length, ints.remaining());
+                ints.put(src, offset, count);
+                offset += count;
+                length -= count;
+            }
+        }
+
+        void flush() throws IOException {
+            out.write(bytes.array(), 0, 4 * ints.position());
+            ints.clear();
+        }
+    }
+
+    private static final class ChunkReader {
+        private final DataInputStream in;
+        private final ByteBuffer bytes = ByteBuffer.allocate(CHUNK_BYTES);
+        private final IntBuffer ints = bytes.asIntBuffer();
+        /** Ints still to be read from the stream, so nothing past the frame is consumed. */
+        private int remaining;
+
+        ChunkReader(final DataInputStream in, final int count) {
+            this.in = in;
+            this.remaining = count;
+            ints.limit(0);
+        }
+
+        private void fill() throws IOException {
+            if (remaining <= 0) {
+                throw new IOException("Corrupt image state");
+            }
+            final int count = Math.min(remaining, CHUNK_BYTES / 4);
+            in.readFully(bytes.array(), 0, 4 * count);
+            ints.clear();
+            ints.limit(count);
+            remaining -= count;
+        }
+
+        int get() throws IOException {
+            if (!ints.hasRemaining()) {
+                fill();
+            }
+            return ints.get();
+        }
+
+        void get(final int[] dst, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!ints.hasRemaining()) {
+                    fill();
+                }
+                final int count = Math.min(length, ints.remaining());
+                ints.get(dst, offset, count);
+                offset += count;
+                length -= count;
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package uk.co.jads.android.jpc;
+
+/**
+ * Pixel conversion between the VGA card's display buffer and the opaque
+ * ARGB_8888 layout expected by {@link android.graphics.Bitmap}.
+ */
+final class FrameConverter {
+    static final int OPAQUE = 0xff000000;
+
+    private FrameConverter() {
+    }
+
+    static int rgbToPixel(final int red, final int green, final int blue) {
+        return OPAQUE | ((0xff & red) << 16) | ((0xff & green) << 8) | (0xff & blue);
+    }
+
+    static boolean isOpaque(final int pixel) {
+        return (pixel & OPAQUE) == OPAQUE;
+    }
+
+    /**
+     * Copies a w x h rectangle from src into dst, forcing every pixel opaque
+     * on the way so the source buffer is never modified.
+     */
+    static void copyOpaque(final int[] src, final int srcOffset, final int srcStride,
+                           final int[] dst, final int dstOffset, final int dstStride,
+                           final int w, final int h) {
+        for (int y = 0; y < h; y++) {
+            int s = srcOffset + y * srcStride;
+            int d = dstOffset + y * dstStride;
+            for (final int end = s + w; s < end; s++, d++) {
+                dst[d] = src[s] | OPAQUE;
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package uk.co.jads.android.jpc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer handing completed frames from a single producer
+ * thread to a single consumer thread. The producer always owns one slot to
+ * render into, the consumer always owns one slot to draw from and the third
+ * slot holds the most recently published frame.
+ */
+final class FrameExchange<T> {
+    static final int SLOTS = 3;
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final Object[] slots;
+    /** Index of the published slot, with {@link #FRESH} set until the consumer takes it. */
+    private final AtomicInteger ready = new AtomicInteger(1);
+    private int back = 0;
+    private int front = 2;
+
+    FrameExchange(final T first, final T second, final T third) {
+        slots = new Object[] { first, second, third };
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(final int slot) {
+        return (T) slots[slot];
+    }
+
+    /** The slot the producer renders into. Only call from the producer thread. */
+    T back() {
+        return get(back);
+    }
+
+    /** Publishes the back slot and hands the producer a slot the consumer no longer draws. */
+    void publish() {
+        back = ready.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /** Returns the newest published frame. Only call from the consumer thread. */
+    T front() {
+        if ((ready.get() & FRESH) != 0) {
+            front = ready.getAndSet(front) & INDEX_MASK;
+        }
+        return get(front);
+    }
+}
@@ -0,0 +1,67 @@
+package uk.co.jads.android.jpc;
+
+/**
+ * Decides when the display updater renders the next frame. While the guest
+ * keeps changing the screen frames are produced at the full rate; every
+ * frame that turns out to be unchanged doubles the wait, so a static screen
+ * is only polled a couple of times per second. Input and resizes wake the
+ * updater immediately, and the interval never drops below a multiple of the
+ * measured render time so that rendering cannot starve the emulation thread.
+ */
+final class FrameScheduler {
+    static final long MIN_INTERVAL_MS = 20;
+    static final long MAX_INTERVAL_MS = 500;
+    /** Rendering may take at most 1/RENDER_BUDGET of the frame interval. */
+    private static final int RENDER_BUDGET = 4;
+
+    private final Object lock = new Object();
+    private boolean requested;
+    private long interval = MIN_INTERVAL_MS;
+
+    /** Wakes the updater for an early frame. Safe to call from any thread. */
+    void requestFrame() {
+        synchronized (lock) {
+            requested = true;
+            interval = MIN_INTERVAL_MS;
+            lock.notifyAll();
+        }
+    }
+
+    /** Blocks until the next frame is due or has been requested. */
+    void awaitFrame() throws InterruptedException {
+        synchronized (lock) {
+            final long deadline = System.currentTimeMillis() + interval;
+            while (!requested) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                lock.wait(remaining);
+            }
+            requested = false;
+        }
+    }
+
+    /**
+     * Reports the outcome of a frame.
+     *
+     * @param changed    whether anything on screen changed
+     * @param renderTime milliseconds spent rendering and uploading the frame
+     */
+    void frameDone(final boolean changed, final long renderTime) {
+        synchronized (lock) {
+            if (changed) {
+                interval = MIN_INTERVAL_MS;
+            } else {
+                interval = Math.min(interval * 2, MAX_INTERVAL_MS);
+            }
+            interval = Math.min(Math.max(interval, renderTime * RENDER_BUDGET), MAX_INTERVAL_MS);
+        }
+    }
+
+    long getInterval() {
+        synchronized (lock) {
+            return interval;
+        }
+    }
+}
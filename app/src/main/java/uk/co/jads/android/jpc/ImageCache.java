@@ -0,0 +1,181 @@
+package uk.co.jads.android.jpc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Copies disk images bundled as classpath resources into a directory once
+ * and hands out the stored copy on later launches. A manifest next to the
+ * images records, for every image, the build it was copied from and its
+ * size; an image is copied again only when it is missing, its size no longer
+ * matches or the app has been updated. A fresh copy is checked against the
+ * CRC32 of the bundled data before it is used.
+ *
+ * The stored copies are meant to stay as bundled: images the guest writes
+ * to should be attached through {@link #guestCopy}, or through a
+ * {@link BlockImageDevice} overlay. The directory should be one the system
+ * does not purge, such as the app's files directory, as a purge would cost
+ * a full copy on the next launch.
+ */
+class ImageCache {
+    private static final String MANIFEST = "images.manifest";
+    private static final long TRANSFER_CHUNK = 1024 * 1024;
+
+    private final File dir;
+    private final String version;
+    private final Properties manifest = new Properties();
+
+    /**
+     * @param dir     where the images and the manifest are kept
+     * @param version identifies the build the bundled images belong to;
+     *                cached images from any other version are replaced
+     */
+    ImageCache(final File dir, final String version) {
+        this.dir = dir;
+        this.version = version;
+        final File file = new File(dir, MANIFEST);
+        if (file.exists()) {
+            try {
+                final InputStream in = new FileInputStream(file);
+                try {
+                    manifest.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                manifest.clear();
+            }
+        }
+    }
+
+    static boolean isBundled(final String resource) {
+        return ImageCache.class.getResource(resource) != null;
+    }
+
+    /** Returns the cached copy of a bundled image, copying it first if needed. */
+    File provision(final String resource, final String name) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create image directory " + dir);
+        }
+        final File image = new File(dir, name);
+        if (isValid(image, name)) {
+            return image;
+        }
+        final InputStream in = ImageCache.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Missing image resource " + resource);
+        }
+        final CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+        final File tmp = new File(dir, name + ".tmp");
+        final long size;
+        try {
+            size = copy(checked, tmp);
+        } finally {
+            checked.close();
+        }
+        final long crc = checked.getChecksum().getValue();
+        if (crc(tmp) != crc) {
+            tmp.delete();
+            throw new IOException("Copy of " + resource + " does not match the bundled image");
+        }
+        image.delete();
+        if (!tmp.renameTo(image)) {
+            throw new IOException("Cannot create " + image);
+        }
+        manifest.setProperty(name + ".version", version);
+        manifest.setProperty(name + ".size", Long.toString(size));
+        manifest.remove(name + ".crc");
+        saveManifest();
+        return image;
+    }
+
+    /**
+     * Returns a copy of an image in dir for the guest to write to. A
+     * persistent copy is made once and then reused, so guest writes survive
+     * restarts and app updates until the copy is deleted. Otherwise the copy
+     * is made afresh on every call and guest writes last for one run.
+     */
+    static File guestCopy(final File image, final File dir, final boolean persistent) throws IOException {
+        final File copy = new File(dir, image.getName());
+        if (persistent && copy.isFile()) {
+            return copy;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create disk directory " + dir);
+        }
+        final File tmp = new File(dir, image.getName() + ".tmp");
+        final InputStream in = new FileInputStream(image);
+        try {
+            copy(in, tmp);
+        } finally {
+            in.close();
+        }
+        copy.delete();
+        if (!tmp.renameTo(copy)) {
+            throw new IOException("Cannot create " + copy);
+        }
+        return copy;
+    }
+
+    private boolean isValid(final File image, final String name) {
+        return image.isFile()
+                && version.equals(manifest.getProperty(name + ".version"))
+                && Long.toString(image.length()).equals(manifest.getProperty(name + ".size"));
+    }
+
+    private static long copy(final InputStream in, final File file) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            final FileChannel channel = out.getChannel();
+            final ReadableByteChannel source = Channels.newChannel(in);
+            long position = 0;
+            long count;
+            while ((count = channel.transferFrom(source, position, TRANSFER_CHUNK)) > 0) {
+                position += count;
+            }
+            return position;
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long crc(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) != -1) {
+                crc.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    private void saveManifest() throws IOException {
+        final File tmp = new File(dir, MANIFEST + ".tmp");
+        final OutputStream out = new FileOutputStream(tmp);
+        try {
+            manifest.store(out, "Provisioned disk images");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(dir, MANIFEST))) {
+            throw new IOException("Cannot update image manifest");
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package uk.co.jads.android.jpc;
+
+import org.jpc.emulator.peripheral.Keyboard;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries keyboard and mouse input from the UI thread to the emulation
+ * thread, which alone touches the guest's keyboard controller. It is a
+ * single-producer/single-consumer ring of packed events: the producer only
+ * writes the tail and the consumer only writes the head, so neither side
+ * ever locks or allocates.
+ *
+ * Draining keeps key events in exact order but merges consecutive mouse
+ * motion with unchanged buttons into a single packet, so a fast touch
+ * stream cannot flood the guest's mouse buffer. What the guest receives can
+ * be recorded to an {@link InputTrace}.
+ *
+ * When the guest stops taking input the queue fills up, and then drops key
+ * presses and mouse motion, never a release whose press was queued: those
+ * go into a reserve at the end of the ring that nothing else may use. Drops
+ * are counted in {@link Metrics#INPUT_DROPPED}.
+ */
+final class InputQueue {
+    static final int CAPACITY = 1024;
+    /** Largest movement one PS/2 packet can carry. */
+    static final int MAX_DELTA = 255;
+    /** Largest wheel movement, a 4-bit field in IntelliMouse packets. */
+    static final int MAX_WHEEL = 7;
+    /**
+     * Slots only releases may use. The producer tracks what it has queued as
+     * held, so at most one release per scancode and per mouse button is ever
+     * owed once presses are refused.
+     */
+    static final int RESERVE = 256 + 8;
+    private static final long KEY_PRESSED = 1L << 62;
+    private static final long KEY_RELEASED = 2L << 62;
+    private static final long MOUSE = 3L << 62;
+    private static final long TYPE = 3L << 62;
+
+    private final long[] events = new long[CAPACITY];
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile InputTrace.Recorder recorder;
+    /** Producer side: the keys whose last queued event was a press. */
+    private final boolean[] held = new boolean[256];
+    /** Producer side: the mouse buttons of the last queued packet. */
+    private int heldButtons;
+
+    void keyPressed(final byte scancode) {
+        if (offer(KEY_PRESSED | (scancode & 0xff), false)) {
+            held[scancode & 0xff] = true;
+        }
+    }
+
+    void keyReleased(final byte scancode) {
+        // a release whose press was dropped is dropped too
+        if (offer(KEY_RELEASED | (scancode & 0xff), held[scancode & 0xff])) {
+            held[scancode & 0xff] = false;
+        }
+    }
+
+    void putMouseEvent(final int dx, final int dy, final int dz, int buttons) {
+        final boolean releases = (heldButtons & ~buttons) != 0;
+        if (releases && !hasRoom(false)) {
+            // from the reserve, a packet may only let go of buttons
+            buttons &= heldButtons;
+        }
+        if (offer(MOUSE | (dx & 0xffffL) | (dy & 0xffffL) << 16 | (dz & 0xffL) << 32 | (buttons & 0xffL) << 40, releases)) {
+            heldButtons = buttons;
+        }
+    }
+
+    private boolean hasRoom(final boolean release) {
+        return tail.get() - head.get() < (release ? CAPACITY : CAPACITY - RESERVE);
+    }
+
+    /** @param release the event lets go of something held, and may use the reserve */
+    private boolean offer(final long event, final boolean release) {
+        if (!hasRoom(release)) {
+            Metrics.INPUT_DROPPED.increment();
+            return false;
+        }
+        final long t = tail.get();
+        events[(int) t & (CAPACITY - 1)] = event;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /** Starts recording delivered input, or stops it when null. */
+    void setRecorder(final InputTrace.Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Delivers everything queued so far to the guest. Emulation thread only.
+     *
+     * @throws IOException if recording failed; it has stopped, but the
+     *                     input was delivered
+     */
+    void drain(final Keyboard keyboard) throws IOException {
+        final long h = head.get();
+        final long t = tail.get();
+        if (h == t) {
+            return;
+        }
+        int dx = 0;
+        int dy = 0;
+        int dz = 0;
+        int buttons = -1;
+        final InputTrace.Recorder recorder = this.recorder;
+        for (long i = h; i < t; i++) {
+            final long event = events[(int) i & (CAPACITY - 1)];
+            if ((event & TYPE) == MOUSE) {
+                final int b = (int) (event >>> 40) & 0xff;
+                if (buttons >= 0 && b != buttons) {
+                    putMouse(keyboard, recorder, dx, dy, dz, buttons);
+                    dx = dy = dz = 0;
+                }
+                dx += (short) event;
+                dy += (short) (event >>> 16);
+                dz += (byte) (event >>> 32);
+                buttons = b;
+                continue;
+            }
+            if (buttons >= 0) {
+                putMouse(keyboard, recorder, dx, dy, dz, buttons);
+                dx = dy = dz = 0;
+                buttons = -1;
+            }
+            if ((event & TYPE) == KEY_PRESSED) {
+                keyboard.keyPressed((byte) event);
+                if (recorder != null) {
+                    recorder.keyPressed((byte) event);
+                }
+            } else {
+                keyboard.keyReleased((byte) event);
+                if (recorder != null) {
+                    recorder.keyReleased((byte) event);
+                }
+            }
+        }
+        if (buttons >= 0) {
+            putMouse(keyboard, recorder, dx, dy, dz, buttons);
+        }
+        head.lazySet(t);
+        if (recorder != null) {
+            try {
+                recorder.flush();
+            } catch (IOException e) {
+                this.recorder = null;
+                throw e;
+            }
+        }
+    }
+
+    /** Sends merged motion, split over several packets only if it exceeds what one can hold. */
+    private static void putMouse(final Keyboard keyboard, final InputTrace.Recorder recorder, int dx, int dy, int dz, final int buttons) {
+        do {
+            final int px = clamp(dx, MAX_DELTA);
+            final int py = clamp(dy, MAX_DELTA);
+            final int pz = clamp(dz, MAX_WHEEL);
+            keyboard.putMouseEvent(px, py, pz, buttons);
+            if (recorder != null) {
+                recorder.putMouseEvent(px, py, pz, buttons);
+            }
+            dx -= px;
+            dy -= py;
+            dz -= pz;
+        } while (dx != 0 || dy != 0 || dz != 0);
+    }
+
+    private static int clamp(final int value, final int limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+}
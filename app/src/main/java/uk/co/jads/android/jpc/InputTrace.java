@@ -0,0 +1,247 @@
+package uk.co.jads.android.jpc;
+
+import org.jpc.emulator.peripheral.Keyboard;
+import org.jpc.support.Clock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A binary trace of the input the guest received, stamped with guest clock
+ * time, so a session can be played back against the same disk images as a
+ * repeatable workload: {@link Recorder} writes what {@link InputQueue}
+ * delivers, {@link Player} delivers it again at the same guest times.
+ *
+ * After a header of magic, version and clock tick rate, each event is a
+ * varint of guest ticks since the previous event, a type byte and its
+ * payload: the scancode for key events, or zigzag varints dx, dy, dz and a
+ * buttons byte for mouse packets. Typing costs three or four bytes a key.
+ */
+final class InputTrace {
+    static final int MAGIC = 0x4a504349; // "JPCI"
+    static final int VERSION = 1;
+    private static final int KEY_PRESSED = 0;
+    private static final int KEY_RELEASED = 1;
+    private static final int MOUSE = 2;
+
+    private InputTrace() {
+    }
+
+    /**
+     * Appends events as they are handed to the guest. Called by the
+     * emulation thread, closed from another one, hence synchronized; a
+     * recorder that is closed or failed to write drops further events, and
+     * the failure surfaces from the next {@link #flush}.
+     */
+    static final class Recorder {
+        private final Clock clock;
+        private final DataOutputStream out;
+        private long last;
+        private boolean closed;
+        /** True when events were written since the last flush. */
+        private boolean dirty;
+        private IOException failure;
+
+        Recorder(final OutputStream out, final Clock clock) throws IOException {
+            this.clock = clock;
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeLong(clock.getTickRate());
+        }
+
+        synchronized void keyPressed(final byte scancode) {
+            if (begin(KEY_PRESSED)) {
+                end(scancode);
+            }
+        }
+
+        synchronized void keyReleased(final byte scancode) {
+            if (begin(KEY_RELEASED)) {
+                end(scancode);
+            }
+        }
+
+        synchronized void putMouseEvent(final int dx, final int dy, final int dz, final int buttons) {
+            if (begin(MOUSE)) {
+                try {
+                    writeVarint(out, zigzag(dx));
+                    writeVarint(out, zigzag(dy));
+                    writeVarint(out, zigzag(dz));
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+                end(buttons);
+            }
+        }
+
+        private boolean begin(final int type) {
+            if (closed) {
+                return false;
+            }
+            final long now = clock.getTime();
+            try {
+                writeVarint(out, Math.max(0, now - last));
+                out.writeByte(type);
+            } catch (IOException e) {
+                fail(e);
+                return false;
+            }
+            last = Math.max(last, now);
+            dirty = true;
+            return true;
+        }
+
+        private void end(final int payload) {
+            try {
+                out.writeByte(payload);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(final IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            closed = true;
+        }
+
+        /**
+         * Pushes recorded events out to the file, so a session that is
+         * killed loses little of its trace.
+         *
+         * @throws IOException if recording stopped because a write failed
+         */
+        synchronized void flush() throws IOException {
+            if (dirty && failure == null) {
+                dirty = false;
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        synchronized void close() throws IOException {
+            closed = true;
+            out.close();
+        }
+    }
+
+    /** Delivers a recorded trace to a keyboard as the guest clock reaches each event. */
+    static final class Player {
+        private final DataInputStream in;
+        private long next;
+        private int events;
+        private boolean done;
+
+        /** @throws IOException if the trace is not one, or was recorded with a different clock rate */
+        Player(final InputStream in, final Clock clock) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            if (this.in.readInt() != MAGIC || this.in.readUnsignedByte() != VERSION) {
+                throw new IOException("Not an input trace");
+            }
+            final long tickRate = this.in.readLong();
+            if (tickRate != clock.getTickRate()) {
+                throw new IOException("Trace was recorded at " + tickRate + " ticks/s, the clock runs at " + clock.getTickRate());
+            }
+            advance();
+        }
+
+        /** Reads the time of the next event, or marks the trace done at its end. */
+        private void advance() throws IOException {
+            try {
+                next += readVarint(in);
+            } catch (EOFException e) {
+                done = true;
+            }
+        }
+
+        /** Guest time of the next event; only meaningful while not {@link #isDone}. */
+        long nextTime() {
+            return next;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        /** Events delivered so far. */
+        int getEvents() {
+            return events;
+        }
+
+        /**
+         * Delivers every event due by guest time now. A trace cut off in the
+         * middle of an event, as left by a killed app, just ends there.
+         */
+        void deliver(final Keyboard keyboard, final long now) throws IOException {
+            while (!done && next <= now) {
+                try {
+                    final int type = in.readUnsignedByte();
+                    if (type == KEY_PRESSED) {
+                        keyboard.keyPressed(in.readByte());
+                    } else if (type == KEY_RELEASED) {
+                        keyboard.keyReleased(in.readByte());
+                    } else if (type == MOUSE) {
+                        final int dx = unzigzag(readVarint(in));
+                        final int dy = unzigzag(readVarint(in));
+                        final int dz = unzigzag(readVarint(in));
+                        keyboard.putMouseEvent(dx, dy, dz, in.readUnsignedByte());
+                    } else {
+                        throw new IOException("Bad event type " + type + " in input trace");
+                    }
+                } catch (EOFException e) {
+                    done = true;
+                    return;
+                }
+                events++;
+                advance();
+            }
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static long zigzag(final int value) {
+        return (value << 1 ^ value >> 31) & 0xffffffffL;
+    }
+
+    private static int unzigzag(final long value) {
+        return (int) (value >>> 1) ^ -(int) (value & 1);
+    }
+
+    private static void writeVarint(final DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(final DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint in input trace");
+    }
+}
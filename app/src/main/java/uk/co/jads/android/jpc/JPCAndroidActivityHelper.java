@@ -6,6 +6,7 @@ import android.content.DialogInterface;
 import android.content.res.AssetManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.text.ClipboardManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
@@ -17,38 +18,81 @@ import org.jpc.emulator.PC;
 import org.jpc.emulator.pci.peripheral.DefaultVGACard;
 import org.jpc.emulator.pci.peripheral.EthernetCard;
 import org.jpc.emulator.pci.peripheral.VGACard;
-import org.jpc.emulator.peripheral.Keyboard;
 import org.jpc.j2se.Option;
 import org.jpc.j2se.VirtualClock;
 import org.jpc.support.ArgProcessor;
+import org.jpc.support.Clock;
+import org.jpc.support.DriveSet;
 import org.jpc.support.EthernetHub;
 import org.jpc.support.EthernetOutput;
+import org.jpc.support.HDBlockDevice;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.ZipEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 public abstract class JPCAndroidActivityHelper extends Activity implements Runnable
 {
     private static final int EXIT_JPC = 5;
     private static final int LOAD_JPC = 3;
     private static final int SAVE_JPC = 4;
+    private static final int TOGGLE_HUD = 6;
+    private static final int PASTE_TEXT = 7;
+    private static final int SCALE_DISPLAY = 8;
+    /** How long to wait for the emulation thread to reach a slice boundary. */
+    private static final long PAUSE_TIMEOUT_MS = 5000;
     private static AssetManager assets;
     private static KeyboardEmulator keyboard;
+    /** Input for the guest, delivered by the emulation thread. */
+    private static final InputQueue input = new InputQueue();
     private static PCMonitor monitor;
     @Nullable
     private static PC pc;
-    private static boolean running;
+    private static volatile boolean running;
     private Handler msgHandler;
+    private Thread runner;
+    private ExecutionScheduler scheduler;
+    private SnapshotStore snapshots;
+    /** Writes the last captured snapshot to storage while the guest keeps running. */
+    private Thread snapshotWriter;
+    private MetricsReporter metricsReporter;
+    /** Where -metrics asked for metrics to be logged, or null. */
+    private File metricsLog;
+    private TextInjector paste;
+    private InputTrace.Recorder recorder;
 
     static {
         JPCAndroidActivityHelper.running = false;
     }
     
     private void loadSnapshot() throws IOException {
-        this.loadSnapshot(this.openFileInput("state.dat"));
+        awaitSnapshotWriter();
+        final long start = System.nanoTime();
+        if (!snapshots.hasSnapshot("pc")) {
+            this.loadSnapshot(this.openFileInput("state.dat"));
+            Metrics.SNAPSHOT_LOAD.recordNanos(System.nanoTime() - start);
+            return;
+        }
+        InputStream in = snapshots.read("pc");
+        try {
+            JPCAndroidActivityHelper.pc.loadState(in);
+        } finally {
+            in.close();
+        }
+        ((VGACard)JPCAndroidActivityHelper.pc.getComponent(VGACard.class)).setOriginalDisplaySize();
+        in = snapshots.read("monitor");
+        try {
+            JPCAndroidActivityHelper.monitor.loadState(in);
+        } finally {
+            in.close();
+        }
+        Metrics.SNAPSHOT_LOAD.recordNanos(System.nanoTime() - start);
     }
     
     private void loadSnapshot(@NonNull final InputStream inputStream) throws IOException {
@@ -70,17 +114,104 @@ public abstract class JPCAndroidActivityHelper extends Activity implements Runna
         return JPCAndroidActivityHelper.class.getResourceAsStream("/" + s);
     }
     
+    /**
+     * Saves incrementally: only the pages of the PC and monitor state that
+     * changed since the previous save are written, on top of a base image.
+     */
     private void saveSnapshot() throws IOException {
+        awaitSnapshotWriter();
+        final long start = System.nanoTime();
+        SnapshotStore.Writer out = snapshots.write("pc");
+        try {
+            pc.saveState(out);
+            out.commit();
+        } finally {
+            out.close();
+        }
+        out = snapshots.write("monitor");
+        try {
+            monitor.saveState(out);
+            out.commit();
+        } finally {
+            out.close();
+        }
+        // superseded by the incremental snapshot
         this.deleteFile("state.dat");
-        final ZipOutputStream zipOutputStream = new ZipOutputStream(this.openFileOutput("state.dat", 0));
-        zipOutputStream.putNextEntry(new ZipEntry("pc"));
-        pc.saveState(zipOutputStream);
-        zipOutputStream.closeEntry();
-        zipOutputStream.putNextEntry(new ZipEntry("monitor"));
-        monitor.saveState(zipOutputStream);
-        zipOutputStream.closeEntry();
-        zipOutputStream.finish();
-        zipOutputStream.close();
+        Metrics.SNAPSHOT_WRITE.recordNanos(System.nanoTime() - start);
+    }
+
+    /**
+     * Serialises the PC and monitor into memory. Execution must be stopped;
+     * this is the only part of a save the guest has to wait for.
+     *
+     * @return the PC and monitor state, or null if there is not enough memory
+     *         to hold a copy and the snapshot has to be written directly
+     */
+    @Nullable
+    private StateBuffer[] captureSnapshot() throws IOException {
+        awaitSnapshotWriter();
+        try {
+            final long start = System.nanoTime();
+            final StateBuffer pcState = new StateBuffer();
+            pc.saveState(pcState);
+            final StateBuffer monitorState = new StateBuffer();
+            monitor.saveState(monitorState);
+            Metrics.SNAPSHOT_CAPTURE.recordNanos(System.nanoTime() - start);
+            return new StateBuffer[] { pcState, monitorState };
+        }
+        catch (OutOfMemoryError outOfMemoryError) {
+            Log.w("JPC", "Not enough memory to capture snapshot, saving in the foreground");
+            return null;
+        }
+    }
+
+    /** Writes a captured snapshot into the snapshot store on a background thread. */
+    private void writeSnapshotInBackground(@NonNull final StateBuffer[] state) {
+        synchronized (this) {
+            snapshotWriter = new Thread("Snapshot Writer") {
+                @Override
+                public void run() {
+                    try {
+                        final long start = System.nanoTime();
+                        writeSnapshot("pc", state[0]);
+                        writeSnapshot("monitor", state[1]);
+                        deleteFile("state.dat");
+                        Metrics.SNAPSHOT_WRITE.recordNanos(System.nanoTime() - start);
+                    }
+                    catch (IOException ex) {
+                        showError("Save Failed", "Failed to save state: " + ex.getMessage());
+                    }
+                }
+            };
+            snapshotWriter.setPriority(Thread.MIN_PRIORITY);
+            snapshotWriter.start();
+        }
+    }
+
+    private void writeSnapshot(final String name, @NonNull final StateBuffer state) throws IOException {
+        final SnapshotStore.Writer out = snapshots.write(name);
+        try {
+            state.writeTo(out);
+            out.commit();
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Waits until a snapshot still being written in the background has reached storage. */
+    private void awaitSnapshotWriter() {
+        final Thread writer;
+        synchronized (this) {
+            writer = snapshotWriter;
+            snapshotWriter = null;
+        }
+        while (writer != null && writer.isAlive()) {
+            try {
+                writer.join();
+            }
+            catch (InterruptedException ignored) {
+            }
+        }
     }
     
     private void showError(final String s, final String s2) {
@@ -123,6 +254,7 @@ public abstract class JPCAndroidActivityHelper extends Activity implements Runna
         if (pc != null) {
             this.stopExecution();
         }
+        stopRecording();
         System.runFinalizersOnExit(true);
         System.exit(0);
     }
@@ -136,20 +268,46 @@ public abstract class JPCAndroidActivityHelper extends Activity implements Runna
             }
             this.monitor = monitor;
             this.msgHandler = new Handler();
+            this.snapshots = new SnapshotStore(new File(getFilesDir(), "snapshots"));
             assets = this.getAssets();
             if (pc == null) {
+                // Dalvik cannot load the JVM classes the block compiler generates
                 PC.compile = false;
-                pc = new PC(new VirtualClock(), array);
+                pc = createPC(array);
             }
             EthernetOutput hub = new EthernetHub("relay.widgetry.org", 80);
             EthernetCard card = (EthernetCard) pc.getComponent(EthernetCard.class);
             card.setOutputDevice(hub);
 
+            final String scale = ArgProcessor.findVariable(array, "scale", null);
+            if (scale != null) {
+                final int mode = Arrays.asList(DisplayScaler.MODE_NAMES).indexOf(scale);
+                if (mode >= 0) {
+                    monitor.setScaleMode(mode);
+                } else {
+                    Log.w("JPC", "Unknown display scaling " + scale + ", one of " + Arrays.toString(DisplayScaler.MODE_NAMES) + " expected");
+                }
+            }
             JPCAndroidActivityHelper.monitor.setPC(pc);
-            final Keyboard keyboard = (Keyboard)pc.getComponent(Keyboard.class);
-            this.keyboard = new KeyboardEmulator(keyboard, this);
-            OnScreenButtons overlay = new OnScreenButtons(keyboard, this);
-            MouseEmulator mouse = new MouseEmulator(keyboard, overlay);
+            final String keymap = ArgProcessor.findVariable(array, "keymap", null);
+            if (keymap != null) {
+                loadKeymap(keymap);
+            }
+            final String record = ArgProcessor.findVariable(array, "record", null);
+            if (record != null && ArgProcessor.findVariable(array, "ss", null) != null) {
+                Log.w("JPC", "Not recording input: a trace taken after loading a snapshot cannot be replayed from power on");
+            } else if (record != null && recorder == null) {
+                startRecording(record);
+            }
+            this.keyboard = new KeyboardEmulator(input, this);
+            final String buttons = ArgProcessor.findVariable(array, "buttons", null);
+            OnScreenButtons overlay = new OnScreenButtons(input, this, buttons != null ? loadButtonLayout(buttons) : ButtonLayout.createDefault());
+            MouseEmulator mouse = new MouseEmulator(input, overlay, new Runnable() {
+                @Override
+                public void run() {
+                    wakeExecution();
+                }
+            });
             monitor.setScreenOverlay(overlay);
             monitor.setOnTouchListener(mouse);
             final String variable = ArgProcessor.findVariable(array, "ss", null);
@@ -158,6 +316,11 @@ public abstract class JPCAndroidActivityHelper extends Activity implements Runna
             }
             this.startExecution();
             monitor.startUpdateThread();
+            final String metrics = ArgProcessor.findVariable(array, "metrics", null);
+            if (metrics != null) {
+                metricsLog = resolve(metrics);
+                startMetrics();
+            }
         }
         catch (OutOfMemoryError outOfMemoryError) {
             outOfMemoryError.printStackTrace();
@@ -171,6 +334,51 @@ public abstract class JPCAndroidActivityHelper extends Activity implements Runna
         }
     }
     
+    /**
+     * Builds the PC. The -hda image itself is never written. A
+     * block-compressed image is attached through a {@link BlockImageDevice}
+     * whose guest writes go to an overlay in the app's files directory; any
+     * other image file is replaced by a copy there, see
+     * {@link ImageCache#guestCopy}. Guest writes to the hard disk only
+     * survive a restart with -persist; without it the overlay or copy starts
+     * from the image on every launch.
+     */
+    @NonNull
+    private PC createPC(@NonNull final String[] args) throws IOException {
+        final String hda = ArgProcessor.findVariable(args, "hda", null);
+        if (hda == null || !new File(hda).isFile()) {
+            return new PC(new VirtualClock(), args);
+        }
+        final boolean persist = Arrays.asList(args).contains("-persist");
+        final File image = new File(hda);
+        if (!hda.endsWith(BlockImageDevice.EXTENSION)) {
+            final File disk = ImageCache.guestCopy(image, new File(getFilesDir(), "disks"), persist);
+            final String[] withCopy = args.clone();
+            withCopy[Arrays.asList(args).indexOf("-hda") + 1] = disk.getPath();
+            return new PC(new VirtualClock(), withCopy);
+        }
+        final File overlay = new File(getFilesDir(), image.getName() + ".overlay");
+        if (!persist) {
+            overlay.delete();
+        }
+        final DriveSet drives = DriveSet.buildFromArgs(withoutOption(args, "-hda"));
+        drives.setHardDrive(0, new HDBlockDevice(new BlockImageDevice(image, overlay)));
+        return new PC(new VirtualClock(), drives);
+    }
+
+    @NonNull
+    private static String[] withoutOption(@NonNull final String[] args, final String option) {
+        final List<String> result = new ArrayList<String>(Arrays.asList(args));
+        final int index = result.indexOf(option);
+        if (index >= 0) {
+            result.remove(index);
+            if (index < result.size()) {
+                result.remove(index);
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+    
     public void onCreate(final Bundle bundle) {
         super.onCreate(bundle);
     }
@@ -180,21 +388,35 @@ public abstract class JPCAndroidActivityHelper extends Activity implements Runna
         menu.add(0, 4, 0, "Save state").setIcon(17301582);
         menu.add(0, 3, 0, "Load state").setIcon(17301580);
         menu.add(0, 5, 0, "Screenshot").setIcon(17301560);
-        //menu.add(0, 6, 0, "Screenshot");
+        menu.add(0, TOGGLE_HUD, 0, "Performance HUD");
+        menu.add(0, PASTE_TEXT, 0, "Paste text");
+        menu.add(0, SCALE_DISPLAY, 0, "Display scaling");
         return true;
     }
     
     public void onDestroy() {
         JPCAndroidActivityHelper.running = false;
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+        awaitSnapshotWriter();
+        stopRecording();
+        stopMetrics();
         super.onDestroy();
     }
     
     public boolean onKeyDown(final int n, @NonNull final KeyEvent keyEvent) {
-        return keyboard.onKeyDown(n, keyEvent);
+        final boolean handled = keyboard.onKeyDown(n, keyEvent);
+        monitor.requestUpdate();
+        wakeExecution();
+        return handled;
     }
     
     public boolean onKeyUp(final int n, @NonNull final KeyEvent keyEvent) {
-        return keyboard.onKeyUp(n, keyEvent);
+        final boolean handled = keyboard.onKeyUp(n, keyEvent);
+        monitor.requestUpdate();
+        wakeExecution();
+        return handled;
     }
     
     public boolean onOptionsItemSelected(@NonNull final MenuItem menuItem) {
@@ -205,9 +427,9 @@ public abstract class JPCAndroidActivityHelper extends Activity implements Runna
             case 3: {
                 try {
                     monitor.stopUpdateThread();
-                    stopExecution();
+                    final boolean paused = pauseExecution();
                     loadSnapshot();
-                    startExecution();
+                    resumeExecution(paused);
                     monitor.startUpdateThread();
                     return true;
                 }
@@ -219,10 +441,16 @@ public abstract class JPCAndroidActivityHelper extends Activity implements Runna
             case 4: {
                 try {
                     monitor.stopUpdateThread();
-                    stopExecution();
-                    saveSnapshot();
-                    startExecution();
+                    final boolean paused = pauseExecution();
+                    final StateBuffer[] state = captureSnapshot();
+                    if (state == null) {
+                        saveSnapshot();
+                    }
+                    resumeExecution(paused);
                     monitor.startUpdateThread();
+                    if (state != null) {
+                        writeSnapshotInBackground(state);
+                    }
                     return true;
                 }
                 catch (IOException ex2) {
@@ -234,19 +462,39 @@ public abstract class JPCAndroidActivityHelper extends Activity implements Runna
                 ((DefaultVGACard) pc.getComponent(VGACard.class)).saveScreenshot();
                 return true;
             }
+            case TOGGLE_HUD: {
+                final boolean show = !monitor.isShowingHud();
+                monitor.setShowHud(show);
+                if (show) {
+                    startMetrics();
+                } else if (metricsLog == null) {
+                    stopMetrics();
+                }
+                return true;
+            }
+            case PASTE_TEXT: {
+                pasteClipboard();
+                return true;
+            }
+            case SCALE_DISPLAY: {
+                final int mode = (monitor.getScaleMode() + 1) % DisplayScaler.MODE_NAMES.length;
+                monitor.setScaleMode(mode);
+                Log.i("JPC", "Display scaling " + DisplayScaler.MODE_NAMES[mode]);
+                return true;
+            }
         }
     }
     
     public void run() {
-        pc.start();
+        final ExecutionScheduler scheduler;
+        synchronized (this) {
+            scheduler = this.scheduler;
+        }
         try {
-            while (running) {
-                pc.execute();
-            }
+            scheduler.run();
         }
         catch (OutOfMemoryError outOfMemoryError) {
             outOfMemoryError.printStackTrace();
-            pc.stop();
             pc = null;
             showError("Not Enough RAM", "This device does not appear to have enough RAM to start JPC. Reboot and try again.");
         }
@@ -254,104 +502,179 @@ public abstract class JPCAndroidActivityHelper extends Activity implements Runna
             t.printStackTrace();
             showError("Execute Failed", "Sorry this device encoutered a problem running JPC: " + t.getMessage());
         }
-        finally {
-            if (pc != null) {
-                pc.stop();
-            }
-        }
     }
     
     void startExecution() {
         synchronized (this) {
             if (!running) {
                 running = true;
-                Thread runner;
+                scheduler = new ExecutionScheduler(pc, input);
                 (runner = new Thread(this, "PC Execute")).start();
             }
         }
     }
     
     void stopExecution() {
-        // 
-        // This method could not be decompiled.
-        // 
-        // Original Bytecode:
-        // 
-        //     0: aload_0        
-        //     1: monitorenter   
-        //     2: iconst_0       
-        //     3: putstatic       uk/co/jads/android/jpc/JPCAndroidActivityHelper.running:Z
-        //     6: aload_0        
-        //     7: getfield        uk/co/jads/android/jpc/JPCAndroidActivityHelper.runner:Ljava/lang/Thread;
-        //    10: ifnull          56
-        //    13: aload_0        
-        //    14: getfield        uk/co/jads/android/jpc/JPCAndroidActivityHelper.runner:Ljava/lang/Thread;
-        //    17: invokevirtual   java/lang/Thread.isAlive:()Z
-        //    20: istore_2       
-        //    21: iload_2        
-        //    22: ifeq            56
-        //    25: aload_0        
-        //    26: getfield        uk/co/jads/android/jpc/JPCAndroidActivityHelper.runner:Ljava/lang/Thread;
-        //    29: ldc2_w          5000
-        //    32: invokevirtual   java/lang/Thread.join:(J)V
-        //    35: aload_0        
-        //    36: getfield        uk/co/jads/android/jpc/JPCAndroidActivityHelper.runner:Ljava/lang/Thread;
-        //    39: invokevirtual   java/lang/Thread.isAlive:()Z
-        //    42: istore          4
-        //    44: iload           4
-        //    46: ifeq            56
-        //    49: aload_0        
-        //    50: getfield        uk/co/jads/android/jpc/JPCAndroidActivityHelper.runner:Ljava/lang/Thread;
-        //    53: invokevirtual   java/lang/Thread.stop:()V
-        //    56: aload_0        
-        //    57: aconst_null    
-        //    58: putfield        uk/co/jads/android/jpc/JPCAndroidActivityHelper.runner:Ljava/lang/Thread;
-        //    61: aload_0        
-        //    62: monitorexit    
-        //    63: return         
-        //    64: astore_1       
-        //    65: aload_0        
-        //    66: monitorexit    
-        //    67: aload_1        
-        //    68: athrow         
-        //    69: astore          5
-        //    71: goto            56
-        //    74: astore_3       
-        //    75: goto            35
-        //    Exceptions:
-        //  Try           Handler
-        //  Start  End    Start  End    Type                            
-        //  -----  -----  -----  -----  --------------------------------
-        //  2      21     64     69     Any
-        //  25     35     74     78     Ljava/lang/InterruptedException;
-        //  25     35     64     69     Any
-        //  35     44     64     69     Any
-        //  49     56     69     74     Ljava/lang/SecurityException;
-        //  49     56     64     69     Any
-        //  56     61     64     69     Any
-        // 
-        // The error that occurred was:
-        // 
-        // java.lang.IllegalStateException: Expression is linked from several locations: Label_0035:
-        //     at com.strobel.decompiler.ast.Error.expressionLinkedFromMultipleLocations(Error.java:27)
-        //     at com.strobel.decompiler.ast.AstOptimizer.mergeDisparateObjectInitializations(AstOptimizer.java:2592)
-        //     at com.strobel.decompiler.ast.AstOptimizer.optimize(AstOptimizer.java:235)
-        //     at com.strobel.decompiler.ast.AstOptimizer.optimize(AstOptimizer.java:42)
-        //     at com.strobel.decompiler.languages.java.ast.AstMethodBodyBuilder.createMethodBody(AstMethodBodyBuilder.java:214)
-        //     at com.strobel.decompiler.languages.java.ast.AstMethodBodyBuilder.createMethodBody(AstMethodBodyBuilder.java:99)
-        //     at com.strobel.decompiler.languages.java.ast.AstBuilder.createMethodBody(AstBuilder.java:757)
-        //     at com.strobel.decompiler.languages.java.ast.AstBuilder.createMethod(AstBuilder.java:655)
-        //     at com.strobel.decompiler.languages.java.ast.AstBuilder.addTypeMembers(AstBuilder.java:532)
-        //     at com.strobel.decompiler.languages.java.ast.AstBuilder.createTypeCore(AstBuilder.java:499)
-        //     at com.strobel.decompiler.languages.java.ast.AstBuilder.createTypeNoCache(AstBuilder.java:141)
-        //     at com.strobel.decompiler.languages.java.ast.AstBuilder.createType(AstBuilder.java:130)
-        //     at com.strobel.decompiler.languages.java.ast.AstBuilder.addType(AstBuilder.java:105)
-        //     at com.strobel.decompiler.languages.java.JavaLanguage.buildAst(JavaLanguage.java:71)
-        //     at com.strobel.decompiler.languages.java.JavaLanguage.decompileType(JavaLanguage.java:59)
-        //     at com.strobel.decompiler.DecompilerDriver.decompileType(DecompilerDriver.java:304)
-        //     at com.strobel.decompiler.DecompilerDriver.decompileJar(DecompilerDriver.java:225)
-        //     at com.strobel.decompiler.DecompilerDriver.main(DecompilerDriver.java:125)
-        // 
-        throw new IllegalStateException("An error occurred while decompiling this method.");
+        synchronized (this) {
+            running = false;
+            if (scheduler != null) {
+                scheduler.stop();
+            }
+            if (runner != null && runner.isAlive()) {
+                try {
+                    runner.join(5000);
+                }
+                catch (InterruptedException ignored) {
+                }
+                if (runner.isAlive()) {
+                    Log.w("JPC", "PC Execute thread did not stop within 5 seconds");
+                    runner.interrupt();
+                }
+            }
+            runner = null;
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Stops the guest at the next slice boundary, keeping the emulation
+     * thread alive, or stops the thread altogether if it does not get there
+     * in time.
+     *
+     * @return whether the guest was paused rather than stopped; pass it on
+     *         to {@link #resumeExecution}
+     */
+    private boolean pauseExecution() {
+        final ExecutionScheduler scheduler;
+        synchronized (this) {
+            scheduler = this.scheduler;
+        }
+        try {
+            if (scheduler != null && scheduler.pause(PAUSE_TIMEOUT_MS)) {
+                return true;
+            }
+        }
+        catch (InterruptedException ignored) {
+        }
+        Log.w("JPC", "PC Execute thread did not pause, stopping it");
+        stopExecution();
+        return false;
+    }
+
+    /**
+     * Loads an alternative key layout, see {@link KeyMapping}. A relative
+     * path is looked up in the app's files directory.
+     */
+    private void loadKeymap(final String path) throws IOException {
+        final File file = resolve(path);
+        final FileReader in = new FileReader(file);
+        try {
+            KeyMapping.setLayout(KeyMapping.load(in));
+        } finally {
+            in.close();
+        }
+        Log.i("JPC", "Loaded key layout " + file);
+    }
+
+    /** Reads the on-screen button set, see {@link ButtonLayout}. */
+    @NonNull
+    private ButtonLayout loadButtonLayout(final String path) throws IOException {
+        final FileReader in = new FileReader(resolve(path));
+        try {
+            return ButtonLayout.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Starts reporting metrics to the HUD, and logging them when -metrics
+     * names a file; nothing reports them otherwise, to spare the device.
+     */
+    private void startMetrics() {
+        if (metricsReporter == null) {
+            (metricsReporter = new MetricsReporter(metricsLog, monitor)).start();
+        }
+    }
+
+    private void stopMetrics() {
+        if (metricsReporter != null) {
+            metricsReporter.halt();
+            metricsReporter = null;
+        }
+    }
+
+    /** A relative path names a file in the app's files directory. */
+    @NonNull
+    private File resolve(final String path) {
+        final File file = new File(path);
+        return file.isAbsolute() ? file : new File(getFilesDir(), path);
+    }
+
+    /**
+     * Records the input the guest receives from now on into an
+     * {@link InputTrace}, for HeadlessRunner --replay. Started with -record
+     * before the PC runs, the trace replays from boot; -record is refused
+     * together with -ss, as the replay would start from a different state.
+     */
+    private void startRecording(final String path) throws IOException {
+        final File file = resolve(path);
+        recorder = new InputTrace.Recorder(new FileOutputStream(file), (Clock) pc.getComponent(Clock.class));
+        input.setRecorder(recorder);
+        Log.i("JPC", "Recording input to " + file);
+    }
+
+    private void stopRecording() {
+        if (recorder == null) {
+            return;
+        }
+        input.setRecorder(null);
+        try {
+            recorder.close();
+        }
+        catch (IOException e) {
+            Log.w("JPC", "Failed to finish input trace", e);
+        }
+        recorder = null;
+    }
+
+    /** Types the clipboard text into the guest, replacing any paste still in progress. */
+    private void pasteClipboard() {
+        final CharSequence text = ((ClipboardManager) getSystemService(CLIPBOARD_SERVICE)).getText();
+        if (text == null || text.length() == 0) {
+            return;
+        }
+        if (paste != null) {
+            paste.cancel();
+        }
+        paste = new TextInjector(msgHandler, input, KeyMapping.getLayout(), text, new Runnable() {
+            @Override
+            public void run() {
+                monitor.requestUpdate();
+                wakeExecution();
+            }
+        });
+        paste.start();
+    }
+
+    /** Gets an idle guest running again at once, e.g. because it was just sent input. */
+    void wakeExecution() {
+        final ExecutionScheduler scheduler;
+        synchronized (this) {
+            scheduler = this.scheduler;
+        }
+        if (scheduler != null) {
+            scheduler.wake();
+        }
+    }
+
+    private void resumeExecution(final boolean paused) {
+        synchronized (this) {
+            if (paused && scheduler != null) {
+                scheduler.resume();
+                return;
+            }
+        }
+        startExecution();
     }
 }
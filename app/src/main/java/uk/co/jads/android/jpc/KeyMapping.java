@@ -1,107 +1,260 @@
 package uk.co.jads.android.jpc;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
 import static android.view.KeyEvent.*;
 
+/**
+ * Translates Android key codes and characters to PC set 1 scancodes. As in
+ * JPC's own key mapping, an E0-prefixed extended key is passed to the
+ * keyboard as its second byte with bit 7 set, e.g. right Ctrl (E0 1D) as
+ * 0x9D. Both tables are plain arrays, so a lookup never allocates; 0 means
+ * unmapped.
+ *
+ * Alternative layouts are text files, loaded on top of the built-in US
+ * layout by {@link #load}:
+ * <pre>
+ * # comment
+ * key KEYCODE_CTRL_RIGHT e0 1d   Android key code (name or number), then the scancode bytes
+ * char z 15                      character produced by a key ...
+ * char Z 15 shift                ... and with Shift held
+ * </pre>
+ */
 class KeyMapping {
-    private static Map<Integer, Byte> scancodeTable;
-
-    static {
-        // lines marked with missing were mapped in the original JPC
-        scancodeTable = new HashMap<>();
-        scancodeTable.put(KEYCODE_BACK          , (byte) 1);
-        scancodeTable.put(KEYCODE_1             , (byte) 2);
-        scancodeTable.put(KEYCODE_2             , (byte) 3);
-        scancodeTable.put(KEYCODE_3             , (byte) 4);
-        scancodeTable.put(KEYCODE_4             , (byte) 5);
-        scancodeTable.put(KEYCODE_5             , (byte) 6);
-        scancodeTable.put(KEYCODE_6             , (byte) 7);
-        scancodeTable.put(KEYCODE_7             , (byte) 8);
-        scancodeTable.put(KEYCODE_8             , (byte) 9);
-        scancodeTable.put(KEYCODE_9             , (byte) 10);
-        scancodeTable.put(KEYCODE_0             , (byte) 11);
-        scancodeTable.put(KEYCODE_MINUS         , (byte) 12);
-        scancodeTable.put(KEYCODE_EQUALS        , (byte) 13);
-        // missing KeyEvent.VK_BACK_SPACE, keycode 14
-        scancodeTable.put(KEYCODE_TAB           , (byte) 15);
-        scancodeTable.put(KEYCODE_Q             , (byte) 16);
-        scancodeTable.put(KEYCODE_W             , (byte) 17);
-        scancodeTable.put(KEYCODE_E             , (byte) 18);
-        scancodeTable.put(KEYCODE_R             , (byte) 19);
-        scancodeTable.put(KEYCODE_T             , (byte) 20);
-        scancodeTable.put(KEYCODE_Y             , (byte) 21);
-        scancodeTable.put(KEYCODE_U             , (byte) 22);
-        scancodeTable.put(KEYCODE_I             , (byte) 23);
-        scancodeTable.put(KEYCODE_O             , (byte) 24);
-        scancodeTable.put(KEYCODE_P             , (byte) 25);
-        scancodeTable.put(KEYCODE_LEFT_BRACKET  , (byte) 26);
-        scancodeTable.put(KEYCODE_RIGHT_BRACKET , (byte) 27);
-        scancodeTable.put(KEYCODE_ENTER         , (byte) 28);
-        // missing KeyEvent.VK_CONTROL, keycode 29
-        scancodeTable.put(KEYCODE_A             , (byte) 30);
-        scancodeTable.put(KEYCODE_S             , (byte) 31);
-        scancodeTable.put(KEYCODE_D             , (byte) 32);
-        scancodeTable.put(KEYCODE_F             , (byte) 33);
-        scancodeTable.put(KEYCODE_G             , (byte) 34);
-        scancodeTable.put(KEYCODE_H             , (byte) 35);
-        scancodeTable.put(KEYCODE_J             , (byte) 36);
-        scancodeTable.put(KEYCODE_K             , (byte) 37);
-        scancodeTable.put(KEYCODE_L             , (byte) 38);
-        scancodeTable.put(KEYCODE_SEMICOLON     , (byte) 39);
-        // missing KeyEvent.VK_QUOTE, keycode 40
-        // missing KeyEvent.VK_BACK_QUOTE, keycode 41
-        scancodeTable.put(KEYCODE_SHIFT_LEFT    , (byte) 42);
-        // missing KeyEvent.VK_BACK_SLASH, keycode 43
-        scancodeTable.put(KEYCODE_Z             , (byte) 44);
-        scancodeTable.put(KEYCODE_X             , (byte) 45);
-        scancodeTable.put(KEYCODE_C             , (byte) 46);
-        scancodeTable.put(KEYCODE_V             , (byte) 47);
-        scancodeTable.put(KEYCODE_B             , (byte) 48);
-        scancodeTable.put(KEYCODE_N             , (byte) 49);
-        scancodeTable.put(KEYCODE_M             , (byte) 50);
-        scancodeTable.put(KEYCODE_COMMA         , (byte) 51);
-        scancodeTable.put(KEYCODE_PERIOD        , (byte) 52);
-        scancodeTable.put(KEYCODE_SLASH         , (byte) 53);
-        scancodeTable.put(KEYCODE_SHIFT_RIGHT   , (byte) 54);
-        // 55 == 0x37 KPad * (star)
-        // missing KeyEvent.VK_ALT, keycode 56
-        scancodeTable.put(KEYCODE_SPACE         , (byte) 57);
-        // 71-83 (decimal) are numpad keys
-
-        // these were mapped in original JPC
-        // scancodeTable.put(Integer.valueOf(122), (byte) 87); // F11
-        // scancodeTable.put(Integer.valueOf(123), (byte) 88); // F12
-        
-        //Extended Keys
-        //-100, KPad Enter
-        // -99, R-Ctrl
-        // -86, fake L-Shift
-        // -75, KPad /
-        // -74, fake R-Shift
-        // -73, Ctrl + Print Screen
-        // this one was mapped in the original JPC
-        // scancodeTable.put(Integer.valueOf(KeyEvent.VK_ALT_GRAPH), Byte.valueOf((byte) -72)); //AltGr
-        // -58, Ctrl + Break
-
-        scancodeTable.put(KEYCODE_HOME          , (byte)-57); // VK_HOME, keycode 0x47 bit-or 0x80
-        scancodeTable.put(KEYCODE_DPAD_UP       , (byte)-56);
-        scancodeTable.put(KEYCODE_PAGE_UP       , (byte)-55);
-        scancodeTable.put(KEYCODE_DPAD_LEFT     , (byte)-53);
-        scancodeTable.put(KEYCODE_DPAD_RIGHT    , (byte)-51);
-        // missing KeyEvent.VK_END, keycode -49 == (0x4f | 0x80) - 256
-        scancodeTable.put(KEYCODE_DPAD_DOWN     , (byte)-48);
-        scancodeTable.put(KEYCODE_PAGE_DOWN     , (byte)-47);
-        // missing KeyEvent.VK_INSERT, keycode -46, hex((-46 & 0xff) - 0x80) == 0x52
-        scancodeTable.put(KEYCODE_DEL           , (byte)-45);
-        // -37, L-Win
-        // -36, R-Win
-        // -35, Context-Menu
-        // this one was also mapped in original JPC:
-        // scancodeTable.put(Integer.valueOf(19), (byte) 0xFF); //Pause
+    static final int EXTENDED = 0x80;
+    static final byte LEFT_SHIFT = 42;
+    /** Android key codes are well below this. */
+    private static final int KEYCODES = 256;
+    /** Characters up to Latin-1 can be typed. */
+    private static final int CHARS = 256;
+    private static final byte SHIFTED = 1;
+
+    private static volatile KeyMapping current = new KeyMapping();
+
+    private final byte[] scancodes = new byte[KEYCODES];
+    private final byte[] charScancodes = new byte[CHARS];
+    private final byte[] charFlags = new byte[CHARS];
+
+    private KeyMapping() {
+        key(KEYCODE_ESCAPE        , 1);
+        key(KEYCODE_BACK          , 1);
+        key(KEYCODE_1             , 2);
+        key(KEYCODE_2             , 3);
+        key(KEYCODE_3             , 4);
+        key(KEYCODE_4             , 5);
+        key(KEYCODE_5             , 6);
+        key(KEYCODE_6             , 7);
+        key(KEYCODE_7             , 8);
+        key(KEYCODE_8             , 9);
+        key(KEYCODE_9             , 10);
+        key(KEYCODE_0             , 11);
+        key(KEYCODE_MINUS         , 12);
+        key(KEYCODE_EQUALS        , 13);
+        key(KEYCODE_DEL           , 14); // Android's DEL is backspace
+        key(KEYCODE_TAB           , 15);
+        key(KEYCODE_Q             , 16);
+        key(KEYCODE_W             , 17);
+        key(KEYCODE_E             , 18);
+        key(KEYCODE_R             , 19);
+        key(KEYCODE_T             , 20);
+        key(KEYCODE_Y             , 21);
+        key(KEYCODE_U             , 22);
+        key(KEYCODE_I             , 23);
+        key(KEYCODE_O             , 24);
+        key(KEYCODE_P             , 25);
+        key(KEYCODE_LEFT_BRACKET  , 26);
+        key(KEYCODE_RIGHT_BRACKET , 27);
+        key(KEYCODE_ENTER         , 28);
+        key(KEYCODE_CTRL_LEFT     , 29);
+        key(KEYCODE_A             , 30);
+        key(KEYCODE_S             , 31);
+        key(KEYCODE_D             , 32);
+        key(KEYCODE_F             , 33);
+        key(KEYCODE_G             , 34);
+        key(KEYCODE_H             , 35);
+        key(KEYCODE_J             , 36);
+        key(KEYCODE_K             , 37);
+        key(KEYCODE_L             , 38);
+        key(KEYCODE_SEMICOLON     , 39);
+        key(KEYCODE_APOSTROPHE    , 40);
+        key(KEYCODE_GRAVE         , 41);
+        key(KEYCODE_SHIFT_LEFT    , 42);
+        key(KEYCODE_BACKSLASH     , 43);
+        key(KEYCODE_Z             , 44);
+        key(KEYCODE_X             , 45);
+        key(KEYCODE_C             , 46);
+        key(KEYCODE_V             , 47);
+        key(KEYCODE_B             , 48);
+        key(KEYCODE_N             , 49);
+        key(KEYCODE_M             , 50);
+        key(KEYCODE_COMMA         , 51);
+        key(KEYCODE_PERIOD        , 52);
+        key(KEYCODE_SLASH         , 53);
+        key(KEYCODE_SHIFT_RIGHT   , 54);
+        key(KEYCODE_NUMPAD_MULTIPLY, 55);
+        key(KEYCODE_ALT_LEFT      , 56);
+        key(KEYCODE_SPACE         , 57);
+        key(KEYCODE_CAPS_LOCK     , 58);
+        for (int i = 0; i < 10; i++) {
+            key(KEYCODE_F1 + i, 59 + i);
+        }
+        key(KEYCODE_NUM_LOCK      , 69);
+        key(KEYCODE_SCROLL_LOCK   , 70);
+        key(KEYCODE_NUMPAD_7      , 71);
+        key(KEYCODE_NUMPAD_8      , 72);
+        key(KEYCODE_NUMPAD_9      , 73);
+        key(KEYCODE_NUMPAD_SUBTRACT, 74);
+        key(KEYCODE_NUMPAD_4      , 75);
+        key(KEYCODE_NUMPAD_5      , 76);
+        key(KEYCODE_NUMPAD_6      , 77);
+        key(KEYCODE_NUMPAD_ADD    , 78);
+        key(KEYCODE_NUMPAD_1      , 79);
+        key(KEYCODE_NUMPAD_2      , 80);
+        key(KEYCODE_NUMPAD_3      , 81);
+        key(KEYCODE_NUMPAD_0      , 82);
+        key(KEYCODE_NUMPAD_DOT    , 83);
+        key(KEYCODE_F11           , 87);
+        key(KEYCODE_F12           , 88);
+
+        // extended keys, E0 xx
+        key(KEYCODE_NUMPAD_ENTER  , EXTENDED | 0x1c);
+        key(KEYCODE_CTRL_RIGHT    , EXTENDED | 0x1d);
+        key(KEYCODE_NUMPAD_DIVIDE , EXTENDED | 0x35);
+        key(KEYCODE_SYSRQ         , EXTENDED | 0x37);
+        key(KEYCODE_ALT_RIGHT     , EXTENDED | 0x38);
+        key(KEYCODE_HOME          , EXTENDED | 0x47);
+        key(KEYCODE_MOVE_HOME     , EXTENDED | 0x47);
+        key(KEYCODE_DPAD_UP       , EXTENDED | 0x48);
+        key(KEYCODE_PAGE_UP       , EXTENDED | 0x49);
+        key(KEYCODE_DPAD_LEFT     , EXTENDED | 0x4b);
+        key(KEYCODE_DPAD_RIGHT    , EXTENDED | 0x4d);
+        key(KEYCODE_MOVE_END      , EXTENDED | 0x4f);
+        key(KEYCODE_DPAD_DOWN     , EXTENDED | 0x50);
+        key(KEYCODE_PAGE_DOWN     , EXTENDED | 0x51);
+        key(KEYCODE_INSERT        , EXTENDED | 0x52);
+        key(KEYCODE_FORWARD_DEL   , EXTENDED | 0x53);
+        key(KEYCODE_META_LEFT     , EXTENDED | 0x5b);
+        key(KEYCODE_META_RIGHT    , EXTENDED | 0x5c);
+        // Pause sends E1 1D 45 E1 9D C5, which one byte cannot describe
+
+        chars("1234567890-=", "!@#$%^&*()_+", 2);
+        chars("qwertyuiop[]", "QWERTYUIOP{}", 16);
+        chars("asdfghjkl;'`", "ASDFGHJKL:\"~", 30);
+        chars("\\zxcvbnm,./", "|ZXCVBNM<>?", 43);
+        character('\b', 14, false);
+        character('\t', 15, false);
+        character('\n', 28, false);
+        character(' ', 57, false);
+    }
+
+    private void key(final int keycode, final int scancode) {
+        scancodes[keycode] = (byte) scancode;
+    }
+
+    private void chars(final String plain, final String shifted, final int first) {
+        for (int i = 0; i < plain.length(); i++) {
+            character(plain.charAt(i), first + i, false);
+            character(shifted.charAt(i), first + i, true);
+        }
+    }
+
+    private void character(final char c, final int scancode, final boolean shift) {
+        charScancodes[c] = (byte) scancode;
+        charFlags[c] = shift ? SHIFTED : 0;
+    }
+
+    /** The layout used for key events and typed text. */
+    static KeyMapping getLayout() {
+        return current;
+    }
+
+    static void setLayout(final KeyMapping layout) {
+        current = layout;
     }
 
+    /** @return the scancode for an Android key code in the current layout, or 0 if unmapped */
     public static byte getScancode(final int n) {
-        return scancodeTable.get(n);
+        return n >= 0 && n < KEYCODES ? current.scancodes[n] : 0;
+    }
+
+    /** @return the scancode of the key producing c, or 0 if no key does */
+    byte getCharScancode(final char c) {
+        return c < CHARS ? charScancodes[c] : 0;
+    }
+
+    boolean needsShift(final char c) {
+        return c < CHARS && (charFlags[c] & SHIFTED) != 0;
+    }
+
+    /** Reads a layout file, starting from the built-in US layout. */
+    static KeyMapping load(final Reader in) throws IOException {
+        final KeyMapping layout = new KeyMapping();
+        final BufferedReader reader = new BufferedReader(in);
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            final String[] fields = line.trim().split("\\s+");
+            if (fields[0].isEmpty() || fields[0].startsWith("#")) {
+                continue;
+            }
+            try {
+                if (fields[0].equals("key") && fields.length >= 3) {
+                    layout.key(keycode(fields[1]), scancode(Arrays.copyOfRange(fields, 2, fields.length)));
+                } else if (fields[0].equals("char") && (fields.length == 3 || fields.length == 4)) {
+                    final boolean shift = fields.length == 4 && fields[3].equals("shift");
+                    layout.character(character(fields[1]), scancode(new String[] {fields[2]}), shift);
+                } else {
+                    throw new IOException("unknown entry");
+                }
+            } catch (RuntimeException | IOException e) {
+                throw new IOException("Bad key layout entry at line " + number + ": " + line, e);
+            }
+        }
+        return layout;
+    }
+
+    private static int keycode(final String name) throws IOException {
+        if (Character.isDigit(name.charAt(0))) {
+            return Integer.parseInt(name);
+        }
+        try {
+            return android.view.KeyEvent.class.getField(name).getInt(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IOException("no key code " + name, e);
+        }
+    }
+
+    /** Accepts "xx" or "e0 xx" in hex, where xx is a make code from 01 to 7f. */
+    static int scancode(final String[] bytes) throws IOException {
+        if (bytes.length == 1) {
+            return makeCode(bytes[0]);
+        }
+        if (bytes.length == 2 && bytes[0].equalsIgnoreCase("e0")) {
+            return EXTENDED | makeCode(bytes[1]);
+        }
+        throw new IOException("unsupported scancode sequence");
+    }
+
+    private static int makeCode(final String hex) throws IOException {
+        final int code = Integer.parseInt(hex, 16);
+        if (code < 0x01 || code > 0x7f) {
+            throw new IOException("scancode " + hex + " out of range 01-7f");
+        }
+        return code;
+    }
+
+    /** A single character, or \\uXXXX for one that cannot be written plainly, such as # or a space. */
+    private static char character(final String field) {
+        if (field.length() == 6 && field.startsWith("\\u")) {
+            return (char) Integer.parseInt(field.substring(2), 16);
+        }
+        if (field.length() != 1) {
+            throw new IllegalArgumentException(field);
+        }
+        return field.charAt(0);
     }
 }
@@ -1,36 +1,36 @@
 package uk.co.jads.android.jpc;
 
 import android.content.*;
-import org.jpc.emulator.peripheral.*;
 import android.view.*;
-import android.util.*;
 
 class KeyboardEmulator
 {
     private boolean isShiftHeld;
-    private final Keyboard keyboard;
+    private final InputQueue keyboard;
     
-    public KeyboardEmulator(final Keyboard keyboard, final Context context) {
+    public KeyboardEmulator(final InputQueue keyboard, final Context context) {
         this.isShiftHeld = false;
         this.keyboard = keyboard;
         Context context1 = context;
     }
     
     public boolean onKeyDown(final int n, final KeyEvent keyEvent) {
+        Metrics.KEY_EVENTS.increment();
         boolean isShiftHeld = true;
         if (n == KeyEvent.KEYCODE_MENU) {
             isShiftHeld = false;
         }
         else {
-            Log.i("JPC", "Keyboard input with key code " + n);
+            final byte scancode = KeyMapping.getScancode(n);
+            if (scancode == 0) {
+                // leave keys the PC has no use for, such as volume, to the system
+                return false;
+            }
             if (this.isShiftHeld && n == KeyEvent.KEYCODE_PERIOD) {
                 this.keyboard.keyPressed((byte)39);
             }
-            else if (n == KeyEvent.KEYCODE_DEL) {
-                this.keyboard.keyPressed((byte)14);
-            }
             else {
-                this.keyboard.keyPressed(KeyMapping.getScancode(n));
+                this.keyboard.keyPressed(scancode);
             }
             if (n == KeyEvent.KEYCODE_SHIFT_LEFT || n == KeyEvent.KEYCODE_SHIFT_RIGHT) { // use isShiftPressed()?
                 return this.isShiftHeld = isShiftHeld;
@@ -40,10 +40,15 @@ class KeyboardEmulator
     }
     
     public boolean onKeyUp(final int n, final KeyEvent keyEvent) {
+        Metrics.KEY_EVENTS.increment();
         if (n == KeyEvent.KEYCODE_MENU) {
             return false;
         }
-        this.keyboard.keyReleased(KeyMapping.getScancode(n));
+        final byte scancode = KeyMapping.getScancode(n);
+        if (scancode == 0) {
+            return false;
+        }
+        this.keyboard.keyReleased(this.isShiftHeld && n == KeyEvent.KEYCODE_PERIOD ? (byte)39 : scancode);
         if (n == KeyEvent.KEYCODE_SHIFT_LEFT || n == KeyEvent.KEYCODE_SHIFT_RIGHT) {
             this.isShiftHeld = false;
         }
@@ -0,0 +1,172 @@
+package uk.co.jads.android.jpc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide registry of runtime metrics. Updating a metric is a single
+ * atomic operation, so the execution loop, the display updater and the input
+ * handlers can feed it without locks; {@link #report} reads everything back
+ * periodically, turning counters into rates over the reporting interval and
+ * draining the histograms.
+ */
+final class Metrics {
+    static final Counter INSTRUCTIONS = counter("exec.instructions");
+    static final Histogram EXECUTE_SLICE = histogram("exec.slice");
+    /** Milliseconds the emulation thread spent napping on an idle guest. */
+    static final Counter IDLE_TIME = counter("exec.idleMs");
+    static final Histogram RENDER = histogram("display.render");
+    static final Counter FRAMES = counter("display.frames");
+    static final Counter FRAMES_SKIPPED = counter("display.skipped");
+    static final Gauge DIRTY_AREA = gauge("display.dirtyArea");
+    static final Histogram SNAPSHOT_CAPTURE = histogram("snapshot.capture");
+    static final Histogram SNAPSHOT_WRITE = histogram("snapshot.write");
+    static final Histogram SNAPSHOT_LOAD = histogram("snapshot.load");
+    static final Counter KEY_EVENTS = counter("input.keys");
+    static final Counter MOUSE_EVENTS = counter("input.mouse");
+    /** Key presses and mouse motion dropped because the input queue was full. */
+    static final Counter INPUT_DROPPED = counter("input.dropped");
+
+    private static Map<String, Object> registry;
+
+    private Metrics() {
+    }
+
+    static synchronized Counter counter(final String name) {
+        return register(name, new Counter());
+    }
+
+    static synchronized Gauge gauge(final String name) {
+        return register(name, new Gauge());
+    }
+
+    static synchronized Histogram histogram(final String name) {
+        return register(name, new Histogram());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T register(final String name, final T metric) {
+        if (registry == null) {
+            registry = new LinkedHashMap<String, Object>();
+        }
+        final Object existing = registry.get(name);
+        if (existing != null) {
+            return (T) existing;
+        }
+        registry.put(name, metric);
+        return metric;
+    }
+
+    /**
+     * Formats every metric, one per line: counters as a rate per second over
+     * the interval, gauges as their current value and histograms (recorded in
+     * microseconds) as count, mean, p50, p99 and max since the last report.
+     */
+    static synchronized List<String> report(final long intervalMillis) {
+        final List<String> lines = new ArrayList<String>();
+        for (final Map.Entry<String, Object> entry : registry.entrySet()) {
+            final Object metric = entry.getValue();
+            final String value;
+            if (metric instanceof Counter) {
+                final long delta = ((Counter) metric).drain();
+                value = String.format("%d/s", intervalMillis > 0 ? 1000 * delta / intervalMillis : 0);
+            } else if (metric instanceof Gauge) {
+                value = Long.toString(((Gauge) metric).get());
+            } else {
+                value = ((Histogram) metric).drain();
+            }
+            lines.add(entry.getKey() + " " + value);
+        }
+        return lines;
+    }
+
+    static final class Counter {
+        private final AtomicLong total = new AtomicLong();
+        private long reported;
+
+        void add(final long n) {
+            total.addAndGet(n);
+        }
+
+        void increment() {
+            total.incrementAndGet();
+        }
+
+        long get() {
+            return total.get();
+        }
+
+        private long drain() {
+            final long now = total.get();
+            final long delta = now - reported;
+            reported = now;
+            return delta;
+        }
+    }
+
+    static final class Gauge {
+        private volatile long value;
+
+        void set(final long value) {
+            this.value = value;
+        }
+
+        long get() {
+            return value;
+        }
+    }
+
+    /** Latency histogram with power-of-two microsecond buckets. */
+    static final class Histogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void recordNanos(final long nanos) {
+            record(nanos / 1000);
+        }
+
+        void record(final long micros) {
+            final long value = Math.max(0, micros);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long previous;
+            while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+            }
+        }
+
+        private String drain() {
+            final long n = count.getAndSet(0);
+            final long total = sum.getAndSet(0);
+            final long largest = max.getAndSet(0);
+            final long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.getAndSet(i, 0);
+            }
+            if (n == 0) {
+                return "n=0";
+            }
+            return String.format("n=%d mean=%dus p50<%dus p99<%dus max=%dus",
+                    n, total / n, percentile(counts, n, 0.5), percentile(counts, n, 0.99), largest);
+        }
+
+        /** Upper bound of the bucket holding the q-th quantile. */
+        private static long percentile(final long[] counts, final long n, final double q) {
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= q * n) {
+                    return 1L << i;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
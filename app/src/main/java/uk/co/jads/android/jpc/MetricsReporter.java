@@ -0,0 +1,72 @@
+package uk.co.jads.android.jpc;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Hands the latest {@link Metrics} to the monitor's HUD every couple of
+ * seconds and, when given a file, dumps them there and to logcat too.
+ */
+class MetricsReporter extends Thread {
+    static final long INTERVAL_MS = 2000;
+
+    private final File file;
+    private final PCMonitor monitor;
+    private volatile boolean running;
+
+    /** @param file where to log the metrics, or null to only feed the HUD */
+    MetricsReporter(final File file, final PCMonitor monitor) {
+        super("Metrics Reporter");
+        this.file = file;
+        this.monitor = monitor;
+        running = true;
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public void halt() {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        PrintWriter out = null;
+        if (file != null) {
+            try {
+                out = new PrintWriter(new FileWriter(file, false));
+            } catch (IOException e) {
+                Log.w("JPC", "Cannot write metrics to " + file, e);
+            }
+        }
+        long last = System.currentTimeMillis();
+        while (running) {
+            try {
+                Thread.sleep(INTERVAL_MS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            final long now = System.currentTimeMillis();
+            final List<String> lines = Metrics.report(now - last);
+            last = now;
+            if (out != null) {
+                for (final String line : lines) {
+                    out.println(now + " " + line);
+                }
+                out.flush();
+            }
+            if (file != null) {
+                Log.i("JPC", "metrics " + lines);
+            }
+            monitor.setHud(lines.toArray(new String[lines.size()]));
+        }
+        if (out != null) {
+            out.close();
+        }
+    }
+}
@@ -1,28 +1,32 @@
 package uk.co.jads.android.jpc;
 
 import android.support.annotation.NonNull;
-import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 
-import org.jpc.emulator.peripheral.Keyboard;
-
 class MouseEmulator implements View.OnTouchListener
 {
     private final OnScreenButtons buttons;
-    private final Keyboard keyboard;
+    private final InputQueue keyboard;
+    /** Told about every touch, so an idle guest gets going again. */
+    private final Runnable inputListener;
     private int lastMouseX;
     private int lastMouseY;
     
-    public MouseEmulator(final Keyboard keyboard, final OnScreenButtons buttons) {
+    public MouseEmulator(final InputQueue keyboard, final OnScreenButtons buttons, final Runnable inputListener) {
         this.lastMouseX = 0;
         this.lastMouseY = 0;
         this.keyboard = keyboard;
         this.buttons = buttons;
+        this.inputListener = inputListener;
     }
     
     public boolean onTouch(final View view, @NonNull final MotionEvent motionEvent) {
         this.buttons.onTouch(view, motionEvent);
+        this.inputListener.run();
+        if (view instanceof PCMonitor) {
+            ((PCMonitor) view).requestUpdate();
+        }
         final int lastMouseX = (int)motionEvent.getX();
         final int lastMouseY = (int)motionEvent.getY();
         final int n = 0xFF & motionEvent.getAction();
@@ -33,30 +37,18 @@ class MouseEmulator implements View.OnTouchListener
             n2 = 0;
             n3 = 0;
             if (n == 2) {
-                n2 = lastMouseX - this.lastMouseX;
-                n3 = lastMouseY - this.lastMouseY;
-                if (n2 > 0) {
-                    n2 = Math.max((int)(0.7f * n2), 1);
-                }
-                else if (n2 < 0) {
-                    n2 = Math.min((int)(0.7f * n2), -1);
-                }
-                if (n3 > 0) {
-                    n3 = Math.max((int)(0.7f * n3), 1);
-                }
-                else if (n3 < 0) {
-                    n3 = Math.min((int)(0.7f * n3), -1);
-                }
+                n2 = MouseTranslation.scale(lastMouseX - this.lastMouseX);
+                n3 = MouseTranslation.scale(lastMouseY - this.lastMouseY);
             }
             this.lastMouseX = lastMouseX;
             this.lastMouseY = lastMouseY;
         }
         if (n == 2 || n == 1 || n == 0) {
             int mouseButtonState = this.buttons.getMouseButtonState();
-            if (mouseButtonState == 0 && motionEvent.getAction() == 0 && Math.abs(lastMouseX - this.lastMouseX) < 10 && Math.abs(lastMouseY - this.lastMouseY) < 10) {
+            if (mouseButtonState == 0 && motionEvent.getAction() == 0 && MouseTranslation.isTap(lastMouseX - this.lastMouseX, lastMouseY - this.lastMouseY)) {
                 mouseButtonState = 1;
             }
-            Log.i("JPC", "Mouse event: " + n2 + "," + n3 + "(" + mouseButtonState + ")");
+            Metrics.MOUSE_EVENTS.increment();
             this.keyboard.putMouseEvent(n2, n3, 0, mouseButtonState);
         }
         return true;
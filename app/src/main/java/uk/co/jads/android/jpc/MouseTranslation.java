@@ -0,0 +1,29 @@
+package uk.co.jads.android.jpc;
+
+/**
+ * Translation of touch movement into relative guest mouse motion, kept free
+ * of Android types so it can be exercised on a plain JVM.
+ */
+final class MouseTranslation {
+    static final float SENSITIVITY = 0.7f;
+    /** Largest movement in pixels that still counts as a tap. */
+    static final int TAP_SLOP = 10;
+
+    private MouseTranslation() {
+    }
+
+    /** Scales a touch delta, never rounding a real movement down to nothing. */
+    static int scale(final int delta) {
+        if (delta > 0) {
+            return Math.max((int) (SENSITIVITY * delta), 1);
+        }
+        if (delta < 0) {
+            return Math.min((int) (SENSITIVITY * delta), -1);
+        }
+        return 0;
+    }
+
+    static boolean isTap(final int dx, final int dy) {
+        return Math.abs(dx) < TAP_SLOP && Math.abs(dy) < TAP_SLOP;
+    }
+}
@@ -1,6 +1,7 @@
 package uk.co.jads.android.jpc;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.support.annotation.NonNull;
@@ -8,31 +9,60 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.inputmethod.InputMethodManager;
 
-import org.jpc.emulator.peripheral.Keyboard;
+import java.util.Arrays;
 
+/**
+ * A column of buttons along the right edge of the display, as described by
+ * a {@link ButtonLayout}. The column is drawn into a bitmap of its own that
+ * is only redrawn when a button changes state or the view changes size, so
+ * each frame composites it with a single bitmap draw. Touches are mapped to
+ * buttons through a table of view rows built alongside it; a button stays
+ * held until the finger that pressed it lifts, wherever it has slid to.
+ */
 class OnScreenButtons implements View.OnTouchListener
 {
+    private static final int COLUMN_WIDTH = 100;
     private static final int BUTTON_SPACING = 75;
+    private static final int BUTTON_HEIGHT = 65;
+    private static final int TOP_MARGIN = 10;
+    private static final int LABEL_BASELINE = 37;
+    private static final byte NO_BUTTON = -1;
+    /** Pointer ids tracked; Android numbers them from 0 and reuses them. */
+    private static final int MAX_POINTERS = 16;
     @NonNull
-    private final String[] BUTTON_LABELS;
+    private final ButtonLayout layout;
     @NonNull
     private final Paint buttonHeldPaint;
     @NonNull
     private final Paint buttonPaint;
+    /** Bit i is set while button i is held. */
     private int buttonState;
     private int buttonsXPosition;
     private final Context context;
-    private final Keyboard keyboard;
+    private final InputQueue keyboard;
     @NonNull
     private final Paint labelPaint;
-    
-    public OnScreenButtons(final Keyboard keyboard, final Context context) {
-        this.BUTTON_LABELS = new String[] { "Keyboard", "Left mouse", "Right mouse", "Esc" };
+    /** The button under each row of the view, or NO_BUTTON. */
+    private byte[] rows;
+    /** The button each pointer id pressed, or NO_BUTTON. */
+    private final byte[] pointers = new byte[MAX_POINTERS];
+    private int viewWidth;
+    private int viewHeight;
+    private Bitmap cache;
+    private Canvas cacheCanvas;
+    /** The button state the cache shows, or -1 when it needs redrawing. */
+    private int cachedState;
+
+    public OnScreenButtons(final InputQueue keyboard, final Context context, @NonNull final ButtonLayout layout) {
+        this.layout = layout;
         this.buttonPaint = new Paint();
         this.buttonHeldPaint = new Paint();
         this.labelPaint = new Paint();
         this.buttonsXPosition = 700;
         this.buttonState = 0;
+        this.rows = new byte[0];
+        this.cachedState = -1;
+        Arrays.fill(this.pointers, NO_BUTTON);
         this.keyboard = keyboard;
         this.context = context;
         this.buttonPaint.setStyle(Paint.Style.FILL);
@@ -43,129 +73,154 @@ class OnScreenButtons implements View.OnTouchListener
         this.labelPaint.setStyle(Paint.Style.FILL);
         this.labelPaint.setARGB(255, 255, 255, 255);
     }
-    
-    private boolean press(final float n, final float n2) {
-        if (n > this.buttonsXPosition) {
-            if (n2 < 75.0f) {
-                this.buttonState |= 0x1;
-            }
-            else if (n2 < 150.0f) {
-                this.buttonState |= 0x2;
-            }
-            else if (n2 < 225.0f) {
-                this.buttonState |= 0x4;
-            }
-            else if (n2 < 300.0f) {
-                this.buttonState |= 0x8;
-            }
-            else if (n2 < 375.0f) {
-                this.buttonState |= 0x10;
-            }
-            else if (n2 < 450.0f) {
-                this.buttonState |= 0x20;
-            }
-            if ((0x8 & this.buttonState) == 0x8) {
-                this.keyboard.keyPressed((byte)1);
-            }
-            return true;
+
+    /** Rebuilds the hit table and the cache bitmap for a new view size. */
+    private void layout(final int width, final int height) {
+        this.viewWidth = width;
+        this.viewHeight = height;
+        this.buttonsXPosition = width - COLUMN_WIDTH;
+        this.rows = new byte[Math.max(0, height)];
+        for (int y = 0; y < this.rows.length; y++) {
+            final int button = y / BUTTON_SPACING;
+            this.rows[y] = button < this.layout.size() ? (byte) button : NO_BUTTON;
         }
-        return false;
+        if (this.cache != null) {
+            this.cache.recycle();
+        }
+        final int cacheHeight = Math.min(height, TOP_MARGIN + (this.layout.size() - 1) * BUTTON_SPACING + BUTTON_HEIGHT);
+        this.cache = cacheHeight > 0 ? Bitmap.createBitmap(COLUMN_WIDTH, cacheHeight, Bitmap.Config.ARGB_8888) : null;
+        this.cacheCanvas = this.cache != null ? new Canvas(this.cache) : null;
+        this.cachedState = -1;
     }
-    
-    private boolean release(final float n, final float n2) {
-        if (n > this.buttonsXPosition) {
-            final int buttonState = this.buttonState;
-            if (n2 < 75.0f) {
-                this.buttonState &= 0xFFFFFFFE;
-            }
-            else if (n2 < 150.0f) {
-                this.buttonState &= 0xFFFFFFFD;
-            }
-            else if (n2 < 225.0f) {
-                this.buttonState &= 0xFFFFFFFB;
-            }
-            else if (n2 < 300.0f) {
-                this.buttonState &= 0xFFFFFFF7;
-            }
-            else if (n2 < 375.0f) {
-                this.buttonState &= 0xFFFFFFEF;
-            }
-            else if (n2 < 450.0f) {
-                this.buttonState &= 0xFFFFFFDF;
-            }
-            if ((buttonState & 0x1) == 0x1 && (0x1 & this.buttonState) != 0x1) {
-                ((InputMethodManager)this.context.getSystemService(Context.INPUT_METHOD_SERVICE)).toggleSoftInput(0, 0);
+
+    private void render() {
+        this.cache.eraseColor(0);
+        for (int i = 0; i < this.layout.size(); i++) {
+            final int top = TOP_MARGIN + i * BUTTON_SPACING;
+            final Paint paint = (this.buttonState & 1 << i) != 0 ? this.buttonHeldPaint : this.buttonPaint;
+            this.cacheCanvas.drawRect(0.0f, (float) top, (float) COLUMN_WIDTH, (float) (top + BUTTON_HEIGHT), paint);
+            this.cacheCanvas.drawText(this.layout.labels[i], COLUMN_WIDTH / 2.0f, (float) (top + LABEL_BASELINE), this.labelPaint);
+        }
+        this.cachedState = this.buttonState;
+    }
+
+    private int buttonAt(final float x, final float y) {
+        final int row = (int) y;
+        if (x <= this.buttonsXPosition || row < 0 || row >= this.rows.length) {
+            return NO_BUTTON;
+        }
+        return this.rows[row];
+    }
+
+    private boolean press(final int pointer, final float x, final float y) {
+        final int button = buttonAt(x, y);
+        if (button != NO_BUTTON && pointer >= 0 && pointer < MAX_POINTERS) {
+            this.pointers[pointer] = (byte) button;
+            setButtonState(this.buttonState | 1 << button);
+        }
+        return x > this.buttonsXPosition;
+    }
+
+    /** Lets go of the button the pointer pressed, unless another pointer holds it too. */
+    private boolean release(final int pointer) {
+        if (pointer < 0 || pointer >= MAX_POINTERS || this.pointers[pointer] == NO_BUTTON) {
+            return false;
+        }
+        final int button = this.pointers[pointer];
+        this.pointers[pointer] = NO_BUTTON;
+        for (final byte other : this.pointers) {
+            if (other == button) {
+                return true;
             }
-            if ((buttonState & 0x8) == 0x8 && (0x8 & this.buttonState) != 0x8) {
-                this.keyboard.keyReleased((byte)1);
+        }
+        setButtonState(this.buttonState & ~(1 << button));
+        return true;
+    }
+
+    /** Carries out the actions of every button that went down or up. */
+    private void setButtonState(final int state) {
+        int changed = this.buttonState ^ state;
+        this.buttonState = state;
+        while (changed != 0) {
+            final int button = Integer.numberOfTrailingZeros(changed);
+            changed &= changed - 1;
+            final boolean down = (state & 1 << button) != 0;
+            switch (this.layout.actions[button]) {
+                case ButtonLayout.KEYBOARD:
+                    if (!down) {
+                        ((InputMethodManager) this.context.getSystemService(Context.INPUT_METHOD_SERVICE)).toggleSoftInput(0, 0);
+                    }
+                    break;
+                case ButtonLayout.KEY:
+                    if (down) {
+                        this.keyboard.keyPressed((byte) this.layout.arguments[button]);
+                    } else {
+                        this.keyboard.keyReleased((byte) this.layout.arguments[button]);
+                    }
+                    break;
+                default:
+                    // mouse buttons are polled through getMouseButtonState
+                    break;
             }
-            return true;
         }
-        return false;
     }
-    
+
     public int getButtonsXPosition() {
         return this.buttonsXPosition;
     }
-    
+
+    /** @return the PS/2 button bits of all mouse buttons held */
     public int getMouseButtonState() {
-        int n = 2;
-        if ((0x2 & this.buttonState) == n) {
-            n = 1;
-        }
-        else if ((0x4 & this.buttonState) != 0x4) {
-            return 0;
+        int buttons = 0;
+        int held = this.buttonState;
+        while (held != 0) {
+            final int button = Integer.numberOfTrailingZeros(held);
+            held &= held - 1;
+            if (this.layout.actions[button] == ButtonLayout.MOUSE) {
+                buttons |= this.layout.arguments[button];
+            }
         }
-        return n;
+        return buttons;
     }
-    
+
     void onDraw(@NonNull final Canvas canvas) {
-        this.buttonsXPosition = -100 + canvas.getWidth();
-        final int n = this.buttonsXPosition + (canvas.getWidth() - this.buttonsXPosition) / 2;
-        for (int i = 0; i < 6; ++i) {
-            if (i < this.BUTTON_LABELS.length) {
-                Paint paint = this.buttonPaint;
-                final int n2 = (int)Math.pow(2.0, i);
-                if ((n2 & this.buttonState) == n2) {
-                    paint = this.buttonHeldPaint;
-                }
-                final int n3 = 10 + i * 75;
-                canvas.drawRect((float)this.buttonsXPosition, (float)n3, (float)canvas.getWidth(), (float)(n3 + 65), paint);
-                canvas.drawText(this.BUTTON_LABELS[i], (float)n, (float)(n3 + 37), this.labelPaint);
-            }
+        if (canvas.getWidth() != this.viewWidth || canvas.getHeight() != this.viewHeight) {
+            layout(canvas.getWidth(), canvas.getHeight());
+        }
+        if (this.cache == null) {
+            return;
         }
+        if (this.cachedState != this.buttonState) {
+            render();
+        }
+        canvas.drawBitmap(this.cache, (float) this.buttonsXPosition, 0.0f, null);
     }
-    
+
     public boolean onTouch(final View view, @NonNull final MotionEvent motionEvent) {
-        boolean b = true;
         final int n = 0xFF & motionEvent.getAction();
         final int n2 = (0xFF00 & motionEvent.getAction()) >> 8;
         switch (n) {
             default: {
-                b = false;
-                return b;
+                return false;
             }
             case MotionEvent.ACTION_MOVE: {
-                for (int i = 0; i < motionEvent.getPointerCount(); ++i) {
-                    this.release(motionEvent.getX(i), motionEvent.getY(i));
-                    this.press(motionEvent.getX(i), motionEvent.getY(i));
-                }
-            }
-            case MotionEvent.ACTION_CANCEL: {
-                return b;
+                return true;
             }
             case MotionEvent.ACTION_DOWN: {
-                return this.press(motionEvent.getX(), motionEvent.getY());
+                return this.press(motionEvent.getPointerId(0), motionEvent.getX(), motionEvent.getY());
             }
             case MotionEvent.ACTION_POINTER_DOWN: {
-                return this.press(motionEvent.getX(n2), motionEvent.getY(n2));
+                return this.press(motionEvent.getPointerId(n2), motionEvent.getX(n2), motionEvent.getY(n2));
             }
             case MotionEvent.ACTION_POINTER_UP: {
-                return this.release(motionEvent.getX(n2), motionEvent.getY(n2));
+                return this.release(motionEvent.getPointerId(n2));
             }
-            case MotionEvent.ACTION_UP: {
-                this.release(motionEvent.getX(), motionEvent.getY());
-                return b;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL: {
+                // the last finger is gone, so nothing can still be held
+                Arrays.fill(this.pointers, NO_BUTTON);
+                this.setButtonState(0);
+                return true;
             }
         }
     }
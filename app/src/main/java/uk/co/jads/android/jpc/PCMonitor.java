@@ -4,40 +4,68 @@ import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.os.Environment;
 import android.support.annotation.NonNull;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.View;
 
 import org.jpc.emulator.PC;
+import org.jpc.emulator.memory.PhysicalAddressSpace;
 import org.jpc.emulator.pci.peripheral.DefaultVGACard;
 import org.jpc.emulator.pci.peripheral.VGACard;
 import org.jpc.interop.IPCMonitor;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.IntBuffer;
-import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.BitSet;
 
 public class PCMonitor extends View implements IPCMonitor {
+    /**
+     * Size of the updater's conversion scratch. Large updates go to the
+     * bitmap a band of rows at a time, so no frame-sized array is kept on
+     * the Java heap whatever the display size.
+     */
+    private static final int BAND_PIXELS = 64 * 1024;
     @NonNull
     private final Paint solidPaint;
-    private Bitmap bmp;
+    /** For stretching a capped display in smooth mode. */
+    @NonNull
+    private final Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    /** Completed frames handed from the {@link Updater} to {@link #onDraw}; replaced on every resize. */
+    private volatile FrameExchange<Frame> frames;
+    /** The frame onDraw last showed, carried into the frames of a rebuild. */
+    private volatile Frame shown;
+    /** Set when the whole display buffer changed behind the VGA card's back, e.g. after loadState. */
+    private volatile boolean fullRefresh;
+    private final FrameScheduler scheduler = new FrameScheduler();
+    /** Metrics shown over the display, or null when the HUD is off. */
+    private volatile String[] hud;
+    private boolean showHud;
+    @NonNull
+    private final Paint hudPaint = new Paint();
     private OnScreenButtons overlay;
     private PC pc;
     private Updater updater;
     private DefaultVGACard vgaCard;
+    /** Where the video BIOS keeps the current mode, see {@link #isTextMode}. */
+    private PhysicalAddressSpace memory;
+    /** Whether the current frames were built for a text mode, and so may track cells. */
+    private volatile boolean textFrames;
+    /** True when the VGA card already renders opaque ARGB, so pixels can go straight to the bitmap. */
+    private boolean opaqueSource;
+    private volatile int scaleMode = DisplayScaler.ASPECT;
+    /** Size set through {@link #scaleDisplay} to scale to instead of the view size, or 0. */
+    private volatile int scaleWidth;
+    private volatile int scaleHeight;
 
     @Override
     public void keyPressed(int keyCode) {
@@ -54,9 +82,29 @@ public class PCMonitor extends View implements IPCMonitor {
 
     }
 
+    public int rgbToPixel(int red, int green, int blue) {
+        return FrameConverter.rgbToPixel(red, green, blue);
+    }
+
+    /**
+     * Scales the display to fit width x height instead of the view, or to
+     * the view again when either is 0.
+     */
     @Override
-    public void scaleDisplay(int width, int height) {
-        System.out.println("Scale display");
+    public synchronized void scaleDisplay(int width, int height) {
+        scaleWidth = width;
+        scaleHeight = height;
+        createFrames();
+    }
+
+    /** @param mode one of the {@link DisplayScaler} modes */
+    public synchronized void setScaleMode(final int mode) {
+        scaleMode = mode;
+        createFrames();
+    }
+
+    public int getScaleMode() {
+        return scaleMode;
     }
 
     @Override
@@ -76,8 +124,7 @@ public class PCMonitor extends View implements IPCMonitor {
         }
         if (out == null) throw new RuntimeException("cant get external media dir");
         assert os != null;
-        System.out.println("bmp width " + bmp.getWidth());
-        System.out.println("bmp height " + bmp.getHeight());
+        final Bitmap bmp = frames.front().bitmap;
         try {
             bmp.compress(Bitmap.CompressFormat.PNG, 50, os);
         } finally {
@@ -96,12 +143,34 @@ public class PCMonitor extends View implements IPCMonitor {
         super(context);
         solidPaint = new Paint();
         this.context = context;
+        hudPaint.setARGB(255, 255, 255, 0);
     }
 
     public PCMonitor(@NonNull final Context context, final AttributeSet set) {
         super(context, set);
         solidPaint = new Paint();
         this.context = context;
+        hudPaint.setARGB(255, 255, 255, 0);
+    }
+
+    /** Turns the performance HUD fed by {@link MetricsReporter} on or off. */
+    public void setShowHud(final boolean showHud) {
+        this.showHud = showHud;
+        if (!showHud) {
+            hud = null;
+        }
+        postInvalidate();
+    }
+
+    public boolean isShowingHud() {
+        return showHud;
+    }
+
+    void setHud(final String[] lines) {
+        if (showHud) {
+            hud = lines;
+            postInvalidate(0, 0, getWidth(), (int) (lines.length * hudPaint.getTextSize()) + 4);
+        }
     }
 
     protected PC getPC() {
@@ -112,7 +181,9 @@ public class PCMonitor extends View implements IPCMonitor {
         this.pc = pc;
         solidPaint.setStyle(Paint.Style.FILL);
         solidPaint.setARGB(255, 255, 255, 255);
+        memory = (PhysicalAddressSpace) pc.getComponent(PhysicalAddressSpace.class);
         (vgaCard = (DefaultVGACard) pc.getComponent(VGACard.class)).setMonitor(this);
+        opaqueSource = FrameConverter.isOpaque(vgaCard.rgbToPixel(0, 0, 0));
         vgaCard.resizeDisplay(640, 480);
     }
 
@@ -124,92 +195,126 @@ public class PCMonitor extends View implements IPCMonitor {
     }
 
     public void loadState(@NonNull InputStream in) throws IOException {
-        DataInputStream input = new DataInputStream(in);
-        int len = input.readInt();
-        int[] rawImageData = vgaCard.getDisplayBuffer();
-        if (len != rawImageData.length) {
-            throw new IOException("Image size not consistent with saved image state");
-        }
-        byte[] dummy = new byte[len * 4];
-        input.readFully(dummy);
-        for (int i = 0, j = 0; i < len; i++) {
-            int val = 0;
-            val |= (0xff & dummy[j++]) << 24;
-            val |= (0xff & dummy[j++]) << 16;
-            val |= (0xff & dummy[j++]) << 8;
-            val |= 0xff & dummy[j++];
-
-            rawImageData[i] = val;
-        }
+        FrameBufferCodec.read(vgaCard.getDisplayBuffer(), in);
+        fullRefresh = true;
+        scheduler.requestFrame();
     }
 
     @Override
     protected void onDraw(@NonNull final Canvas canvas) {
-        if (vgaCard != null) {
-            final int width = vgaCard.getDisplaySize().width;
-            final int height = vgaCard.getDisplaySize().height;
-            if (width * height > 0) {
-                if (false && rand.nextDouble() < 0.05d) {
-                    byte[] bytes = ByteBuffer.allocate(height * width * 4).array();
-                    rand.nextBytes(bytes);
-                    IntBuffer intBuf = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN).asIntBuffer();
-                    intBuf.get(vgaCard.getDisplayBuffer());
-                }
-                int[] arr = vgaCard.getDisplayBuffer();
-                for (int i=0; i<arr.length; i++) {
-                    arr[i] |= 0xff000000;
-                }
-
-                try {
-                    bmp.setPixels(arr, 0, width, 0, 0, width, height);
-                } catch (IllegalArgumentException e) {
-                    e.printStackTrace();
-                }
-                canvas.drawBitmap(bmp, 0.0f, 0.0f, solidPaint);
-                System.out.println("drew bitmap");
+        final FrameExchange<Frame> frames = this.frames;
+        if (frames != null) {
+            final Frame front = frames.front();
+            shown = front;
+            final DisplayScaler scaler = front.scaler;
+            if (scaler.getX() > 0 || scaler.getY() > 0) {
+                // the borders around a centred display
+                canvas.drawColor(Color.BLACK);
+            }
+            if (scaler.isStretched()) {
+                canvas.drawBitmap(front.bitmap, null, front.target, scaler.getMode() == DisplayScaler.SMOOTH ? filterPaint : solidPaint);
             } else {
-                System.out.println("didn't draw, h/w zero");
+                canvas.drawBitmap(front.bitmap, (float) scaler.getX(), (float) scaler.getY(), solidPaint);
             }
             if (overlay != null) {
                 overlay.onDraw(canvas);
             }
-        } else {
-            System.out.println("vgaCard null");
+            final String[] hud = this.hud;
+            if (hud != null) {
+                for (int i = 0; i < hud.length; i++) {
+                    canvas.drawText(hud[i], 2.0f, (i + 1) * hudPaint.getTextSize(), hudPaint);
+                }
+            }
         }
     }
 
-    Random rand = new Random();
-
     @Override
     public void resizeDisplay(final int width, final int height) {
         if (vgaCard == null || width == 0 || height == 0) {
-            System.out.println("Not resizing");
             return;
         }
-        vgaCard.setDisplayBuffer(new int[width * height], width, height);
+        final int[] previous = vgaCard.getDisplayBuffer();
+        vgaCard.setDisplayBuffer(previous != null && previous.length == width * height ? previous : new int[width * height], width, height);
         Arrays.fill(vgaCard.getDisplayBuffer(), Integer.MAX_VALUE);
-        if (vgaCard.getDisplaySize().width != width) {
-            System.out.println(String.format("displaysize %d width %d", vgaCard.getDisplaySize().width, width));
+        createFrames();
+    }
+
+    @Override
+    protected void onSizeChanged(final int w, final int h, final int oldw, final int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        createFrames();
+    }
+
+    /**
+     * Sets up frames for the current guest mode, view size and scaling; the
+     * scaling tables and the text cell grid are built here and nowhere else.
+     * Both the emulation thread and the UI thread get here, so rebuilds are
+     * serialised and the last one always sees the latest settings.
+     */
+    private synchronized void createFrames() {
+        if (vgaCard == null || vgaCard.getDisplaySize() == null) {
+            return;
+        }
+        final int w = vgaCard.getDisplaySize().width;
+        final int h = vgaCard.getDisplaySize().height;
+        if (w <= 0 || h <= 0) {
+            return;
         }
-        bmp = Bitmap.createBitmap(vgaCard.getDisplaySize().width, vgaCard.getDisplaySize().height, Bitmap.Config.ARGB_8888);
+        final boolean fixed = scaleWidth > 0 && scaleHeight > 0;
+        final DisplayScaler scaler = new DisplayScaler(scaleMode, w, h, fixed ? scaleWidth : getWidth(), fixed ? scaleHeight : getHeight());
+        textFrames = isTextMode();
+        final TextCells cells = textFrames ? TextCells.forDisplay(w, h) : null;
+        final FrameExchange<Frame> next = new FrameExchange<Frame>(new Frame(scaler, cells, w, h), new Frame(scaler, cells, w, h), new Frame(scaler, cells, w, h));
+        final Frame last = shown;
+        if (last != null) {
+            // Until the updater has filled the new frames, onDraw shows the
+            // last picture stretched to the new size rather than a blank one.
+            // The exchange is not shared yet, so taking its front is safe here.
+            new Canvas(next.front().bitmap).drawBitmap(last.bitmap, null, new Rect(0, 0, scaler.getWidth(), scaler.getHeight()), filterPaint);
+        }
+        frames = next;
+        scheduler.requestFrame();
         postInvalidate();
     }
 
-    public void saveState(@NonNull OutputStream out) throws IOException {
-        int[] rawImageData = vgaCard.getDisplayBuffer();
-        byte[] dummy = new byte[rawImageData.length * 4];
-        for (int i = 0, j = 0; i < rawImageData.length; i++) {
-            int val = rawImageData[i];
-            dummy[j++] = (byte) (val >> 24);
-            dummy[j++] = (byte) (val >> 16);
-            dummy[j++] = (byte) (val >> 8);
-            dummy[j++] = (byte) (val);
+    /**
+     * Whether the guest last set a text mode. The card's mode registers are
+     * not visible from here, so this reads the mode byte the video BIOS keeps
+     * at 0040:0049; modes 0-3 and 7 are text. Graphics modes that share a
+     * text mode's size, like 320x200 mode 13h or 640x350 EGA, therefore never
+     * get a cell grid. A guest that changes mode behind the BIOS leaves the
+     * byte stale, which only costs cell comparisons, never a wrong picture.
+     */
+    private boolean isTextMode() {
+        if (memory == null) {
+            return false;
+        }
+        final int mode = memory.getByte(0x449) & 0x7f;
+        return mode <= 3 || mode == 7;
+    }
+
+    /**
+     * Asks for a display update as soon as possible, typically because input
+     * was just delivered to the guest. Also repaints the on-screen buttons,
+     * whose state may have changed without the guest display changing.
+     */
+    public void requestUpdate() {
+        scheduler.requestFrame();
+        if (overlay != null) {
+            postInvalidate(overlay.getButtonsXPosition(), 0, getWidth(), getHeight());
         }
+    }
+
+    public void saveState(@NonNull OutputStream out) throws IOException {
+        saveState(out, true);
+    }
 
-        DataOutputStream output = new DataOutputStream(out);
-        output.writeInt(rawImageData.length);
-        out.write(dummy);
-        out.flush();
+    /**
+     * @param compress run-length encode the display buffer; VGA frames are
+     *                 mostly flat colour, so this usually shrinks them a lot
+     */
+    public void saveState(@NonNull OutputStream out, boolean compress) throws IOException {
+        FrameBufferCodec.write(vgaCard.getDisplayBuffer(), out, compress);
     }
 
     public void setScreenOverlay(final OnScreenButtons overlay) {
@@ -233,9 +338,58 @@ public class PCMonitor extends View implements IPCMonitor {
         }
     }
 
+    /**
+     * One slot of the frame exchange: a bitmap of the scaled display plus
+     * the part of the display buffer that has changed since that bitmap was
+     * last uploaded, as a rectangle or, in text modes, as a set of character
+     * cells. The stale parts are only touched by the {@link Updater} thread.
+     */
+    static final class Frame {
+        /** Size of the guest display; the bitmap has the scaler's size. */
+        final int width;
+        final int height;
+        final DisplayScaler scaler;
+        /** The text mode cell grid shared by all frames, or null. */
+        final TextCells cells;
+        final Bitmap bitmap;
+        /** Where the bitmap is drawn in the view. */
+        final Rect target;
+        final DirtyRegion stale;
+        /** Stale cells when there is a cell grid, otherwise null. */
+        final BitSet staleCells;
+
+        Frame(final DisplayScaler scaler, final TextCells cells, final int width, final int height) {
+            this.width = width;
+            this.height = height;
+            this.scaler = scaler;
+            this.cells = cells;
+            bitmap = Bitmap.createBitmap(scaler.getWidth(), scaler.getHeight(), Bitmap.Config.ARGB_8888);
+            target = new Rect(scaler.getX(), scaler.getY(), scaler.getX() + scaler.getDrawWidth(), scaler.getY() + scaler.getDrawHeight());
+            stale = new DirtyRegion(width, height);
+            stale.addAll();
+            if (cells != null) {
+                staleCells = new BitSet(cells.getCells());
+                staleCells.set(0, cells.getCells());
+            } else {
+                staleCells = null;
+            }
+        }
+    }
+
     class Updater extends Thread {
         private volatile boolean running;
         Context context;
+        /** Opaque or scaled pixels on their way to a bitmap, one band of rows at a time. */
+        private final int[] band = new int[BAND_PIXELS];
+        /** The rows of the stale area in band, in scaled coordinates. */
+        private final DirtyRegion bandArea = new DirtyRegion(0, 0);
+        /** The uploaded part of the frame, in scaled coordinates. */
+        private final DirtyRegion published = new DirtyRegion(0, 0);
+        /** Scratch rectangles for text mode: what the card reported, one run of cells, and that run scaled. */
+        private final DirtyRegion reported = new DirtyRegion(0, 0);
+        private final DirtyRegion run = new DirtyRegion(0, 0);
+        private final DirtyRegion scaledRun = new DirtyRegion(0, 0);
+        private final BitSet changedCells = new BitSet();
 
         public Updater(Context context) {
             super("PC Monitor Updater Task");
@@ -251,36 +405,179 @@ public class PCMonitor extends View implements IPCMonitor {
             }
         }
 
+        /**
+         * Copies one rectangle of the display buffer into the frame.
+         *
+         * @param area   the rectangle in display coordinates
+         * @param mapped the same rectangle in scaled coordinates
+         */
+        private void upload(@NonNull final Frame frame, @NonNull final int[] pixels, @NonNull final DirtyRegion area, @NonNull final DirtyRegion mapped) {
+            if (!frame.scaler.isIdentity()) {
+                uploadScaled(frame, pixels, mapped);
+                return;
+            }
+            final int x = area.getLeft();
+            final int y = area.getTop();
+            final int w = area.getWidth();
+            final int h = area.getHeight();
+            final int offset = y * frame.width + x;
+            if (opaqueSource) {
+                setPixels(frame, pixels, offset, frame.width, x, y, w, h);
+                return;
+            }
+            final int rows = Math.max(1, BAND_PIXELS / Math.max(1, w));
+            for (int row = 0; row < h; row += rows) {
+                final int n = Math.min(rows, h - row);
+                FrameConverter.copyOpaque(pixels, offset + row * frame.width, frame.width, band, 0, w, w, n);
+                setPixels(frame, band, 0, w, x, y + row, w, n);
+            }
+        }
+
+        /** Scales the part of the display buffer that covers area, in scaled coordinates, into the frame. */
+        private void uploadScaled(@NonNull final Frame frame, @NonNull final int[] pixels, @NonNull final DirtyRegion area) {
+            final DisplayScaler scaler = frame.scaler;
+            final int x = area.getLeft();
+            final int y = area.getTop();
+            final int w = area.getWidth();
+            final int h = area.getHeight();
+            if (w == 0 || h == 0) {
+                return;
+            }
+            final int rows = Math.max(1, BAND_PIXELS / w);
+            bandArea.resize(scaler.getWidth(), scaler.getHeight());
+            for (int row = 0; row < h; row += rows) {
+                final int n = Math.min(rows, h - row);
+                bandArea.clear();
+                bandArea.add(x, y + row, w, n);
+                scaler.scale(pixels, frame.width, bandArea, band, 0, w);
+                setPixels(frame, band, 0, w, x, y + row, w, n);
+            }
+        }
+
+        private void setPixels(@NonNull final Frame frame, @NonNull final int[] pixels, final int offset, final int stride,
+                               final int x, final int y, final int w, final int h) {
+            try {
+                frame.bitmap.setPixels(pixels, offset, stride, x, y, w, h);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /** Asks for the view area showing part of the scaled display to be redrawn. */
+        private void invalidate(@NonNull final DisplayScaler scaler, @NonNull final DirtyRegion area) {
+            final int w = scaler.getWidth();
+            final int h = scaler.getHeight();
+            final int dw = scaler.getDrawWidth();
+            final int dh = scaler.getDrawHeight();
+            postInvalidate(scaler.getX() + area.getLeft() * dw / w, scaler.getY() + area.getTop() * dh / h,
+                    scaler.getX() + (area.getRight() * dw + w - 1) / w, scaler.getY() + (area.getBottom() * dh + h - 1) / h);
+        }
+
+        /**
+         * Uploads the frame's stale cells, one run of adjacent cells at a
+         * time, or as one band of rows when most of the grid is stale.
+         */
+        private void uploadCells(@NonNull final Frame frame, @NonNull final int[] pixels) {
+            published.resize(frame.scaler.getWidth(), frame.scaler.getHeight());
+            run.resize(frame.width, frame.height);
+            if (2 * frame.staleCells.cardinality() > frame.cells.getCells()) {
+                if (frame.cells.span(frame.staleCells, run)) {
+                    frame.scaler.map(run, published);
+                    upload(frame, pixels, run, published);
+                }
+                return;
+            }
+            int next = 0;
+            while ((next = frame.cells.nextRun(frame.staleCells, next, run)) >= 0) {
+                frame.scaler.map(run, scaledRun);
+                upload(frame, pixels, run, scaledRun);
+                published.add(scaledRun);
+            }
+        }
+
         @Override
         public void run() {
             while (running) {
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException ex) {
-                    }
-                    vgaCard.prepareUpdate();
+                try {
+                    scheduler.awaitFrame();
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+                final long start = System.nanoTime();
+                vgaCard.prepareUpdate();
                 try {
                     vgaCard.updateDisplay();
-                    int height = vgaCard.getDisplaySize().getHeight();
-                    int width = vgaCard.getDisplaySize().getWidth();
-//
-//                    if (false && rand.nextDouble() < 0.05d) {
-//                        byte[] bytes = ByteBuffer.allocate(height * width * 4).array();
-//                        rand.nextBytes(bytes);
-//                        IntBuffer intBuf = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN).asIntBuffer();
-//                        intBuf.get(vgaCard.getDisplayBuffer());
-//                    }
-//
-//                    bmp.setPixels(vgaCard.getDisplayBuffer(), 0, width, 0, 0, width, height);
                 } catch (OutOfMemoryError e) {
                     ActivityManager.MemoryInfo mi = new ActivityManager.MemoryInfo();
                     ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
                     activityManager.getMemoryInfo(mi);
                     long availableMegs = mi.availMem / 1048576L;
-                    System.err.println(String.format("available megs %l", availableMegs));
+                    Log.w("JPC", "Out of memory updating the display, " + availableMegs + " MB available");
                     throw e;
                 }
-                    postInvalidate();
+                final FrameExchange<Frame> frames = PCMonitor.this.frames;
+                if (frames == null) {
+                    continue;
+                }
+                final boolean all = fullRefresh;
+                fullRefresh = false;
+                final int xmin = vgaCard.getXMin();
+                final int ymin = vgaCard.getYMin();
+                if (isTextMode() != textFrames) {
+                    // same size, other kind of mode: rebuild the frames with or without cells
+                    createFrames();
+                    continue;
+                }
+                final Frame back = frames.back();
+                final int[] pixels = vgaCard.getDisplayBuffer();
+                if (pixels == null || pixels.length < back.width * back.height) {
+                    continue;
+                }
+                final int dirtyArea;
+                if (back.cells != null) {
+                    reported.resize(back.width, back.height);
+                    if (all) {
+                        reported.addAll();
+                    } else {
+                        reported.add(xmin, ymin, vgaCard.getXMax() - xmin, vgaCard.getYMax() - ymin);
+                    }
+                    changedCells.clear();
+                    back.cells.diff(pixels, reported, all, changedCells);
+                    for (int i = 0; i < FrameExchange.SLOTS; i++) {
+                        frames.get(i).staleCells.or(changedCells);
+                    }
+                    dirtyArea = back.staleCells.cardinality() * back.cells.cellWidth * back.cells.cellHeight;
+                } else {
+                    for (int i = 0; i < FrameExchange.SLOTS; i++) {
+                        final DirtyRegion stale = frames.get(i).stale;
+                        if (all) {
+                            stale.addAll();
+                        } else {
+                            stale.add(xmin, ymin, vgaCard.getXMax() - xmin, vgaCard.getYMax() - ymin);
+                        }
+                    }
+                    dirtyArea = back.stale.getArea();
+                }
+                if (dirtyArea == 0) {
+                    Metrics.FRAMES_SKIPPED.increment();
+                    scheduler.frameDone(false, (System.nanoTime() - start) / 1000000);
+                    continue;
+                }
+                if (back.cells != null) {
+                    uploadCells(back, pixels);
+                    back.staleCells.clear();
+                } else {
+                    back.scaler.map(back.stale, published);
+                    upload(back, pixels, back.stale, published);
+                    back.stale.clear();
+                }
+                frames.publish();
+                invalidate(back.scaler, published);
+                final long renderTime = System.nanoTime() - start;
+                Metrics.FRAMES.increment();
+                Metrics.DIRTY_AREA.set(dirtyArea);
+                Metrics.RENDER.recordNanos(renderTime);
+                scheduler.frameDone(true, renderTime / 1000000);
             }
         }
     }
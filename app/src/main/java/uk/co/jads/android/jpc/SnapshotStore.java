@@ -0,0 +1,462 @@
+package uk.co.jads.android.jpc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Incremental snapshot storage. Every named state stream (the PC, the
+ * monitor) is kept as a raw base image plus a chain of deltas. A save
+ * splits the stream into fixed-size pages, compares each page against the
+ * digest recorded for the previous snapshot and writes only the pages that
+ * differ, so a guest whose working set is small rewrites little more than
+ * that working set. Once the chain gets long or large it is folded back into
+ * a new base image.
+ *
+ * Files for a stream called {@code name}:
+ * <ul>
+ * <li>{@code name.G.base} - raw bytes of the stream as of the last compaction</li>
+ * <li>{@code name.G.N.delta} - pages changed by the N-th save after it</li>
+ * <li>{@code name.index} - base generation G, length, chain length and
+ * per-page digests of the latest save</li>
+ * </ul>
+ * Every new base image is written under a new generation, so the files
+ * of the current one are never overwritten. A delta or a base only becomes
+ * part of the snapshot when the index is replaced, and that is a single
+ * rename; an interrupted save of either kind leaves the previous snapshot
+ * intact, and the index can never be paired with another base than its own.
+ */
+class SnapshotStore {
+    static final int PAGE_SIZE = 4096;
+    static final int MAX_DELTAS = 8;
+    private static final int INDEX_MAGIC = 0x4a504932;
+    private static final int DELTA_MAGIC = 0x4a504344;
+    private static final int END_OF_DELTA = -1;
+
+    private final File dir;
+
+    SnapshotStore(final File dir) {
+        this.dir = dir;
+    }
+
+    boolean hasSnapshot(final String name) {
+        return indexFile(name).exists();
+    }
+
+    /**
+     * Starts a new snapshot of a stream. Nothing becomes visible until
+     * {@link Writer#commit()}; closing an uncommitted writer discards it.
+     */
+    Writer write(final String name) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create snapshot directory " + dir);
+        }
+        return new Writer(name, readIndex(name));
+    }
+
+    InputStream read(final String name) throws IOException {
+        final Index index = readIndex(name);
+        if (index == null) {
+            throw new IOException("No snapshot named " + name);
+        }
+        return new Reader(name, index);
+    }
+
+    /** Folds the delta chain of a stream back into its base image. */
+    void compact(final String name) throws IOException {
+        final Index index = readIndex(name);
+        if (index == null || index.deltas == 0) {
+            return;
+        }
+        final File tmp = new File(dir, name + ".base.tmp");
+        final InputStream in = new Reader(name, index);
+        try {
+            final OutputStream out = new FileOutputStream(tmp);
+            try {
+                final byte[] buffer = new byte[PAGE_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        replaceBase(name, tmp, index, new Index(index.generation + 1, index.length, 0, 0, index.digests));
+    }
+
+    void delete(final String name) throws IOException {
+        final Index index = readIndex(name);
+        indexFile(name).delete();
+        if (index != null) {
+            deleteGeneration(name, index.generation);
+        }
+    }
+
+    private File indexFile(final String name) {
+        return new File(dir, name + ".index");
+    }
+
+    private File baseFile(final String name, final int generation) {
+        return new File(dir, name + "." + generation + ".base");
+    }
+
+    private File deltaFile(final String name, final int generation, final int sequence) {
+        return new File(dir, name + "." + generation + "." + sequence + ".delta");
+    }
+
+    private void deleteDeltas(final String name, final int generation, final int from) {
+        for (int i = from; deltaFile(name, generation, i).exists(); i++) {
+            deltaFile(name, generation, i).delete();
+        }
+    }
+
+    private void deleteGeneration(final String name, final int generation) {
+        baseFile(name, generation).delete();
+        deleteDeltas(name, generation, 1);
+    }
+
+    private static void rename(final File from, final File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Cannot replace " + to);
+        }
+    }
+
+    private static int pageCount(final long length) {
+        return (int) ((length + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    private static long digest(final byte[] page, final int length) {
+        final CRC32 crc = new CRC32();
+        final Adler32 adler = new Adler32();
+        crc.update(page, 0, length);
+        adler.update(page, 0, length);
+        return (crc.getValue() << 32) | adler.getValue();
+    }
+
+    private Index readIndex(final String name) throws IOException {
+        final File file = indexFile(name);
+        if (!file.exists()) {
+            return null;
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != PAGE_SIZE) {
+                return null;
+            }
+            final int generation = in.readInt();
+            final long length = in.readLong();
+            final int deltas = in.readInt();
+            final long deltaBytes = in.readLong();
+            final long[] digests = new long[pageCount(length)];
+            for (int i = 0; i < digests.length; i++) {
+                digests[i] = in.readLong();
+            }
+            return new Index(generation, length, deltas, deltaBytes, digests);
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Replaces the index in one rename, which is what makes a save take effect. */
+    private void writeIndex(final String name, final Index index) throws IOException {
+        final File tmp = new File(dir, name + ".index.tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(PAGE_SIZE);
+            out.writeInt(index.generation);
+            out.writeLong(index.length);
+            out.writeInt(index.deltas);
+            out.writeLong(index.deltaBytes);
+            for (final long digest : index.digests) {
+                out.writeLong(digest);
+            }
+        } finally {
+            out.close();
+        }
+        rename(tmp, indexFile(name));
+    }
+
+    /**
+     * Puts a new base image in place under the generation of its index, then
+     * switches to it by replacing the index. Until that rename the previous
+     * snapshot is untouched; afterwards its files are no longer referenced
+     * and are deleted.
+     *
+     * @param previous the index being replaced, or null
+     */
+    private void replaceBase(final String name, final File base, final Index previous, final Index index) throws IOException {
+        final File target = baseFile(name, index.generation);
+        // stale deltas of an earlier chain that used this generation number
+        deleteDeltas(name, index.generation, 1);
+        rename(base, target);
+        writeIndex(name, index);
+        if (previous != null) {
+            deleteGeneration(name, previous.generation);
+        }
+    }
+
+    private static final class Index {
+        /** Names the base image and delta files this index belongs to. */
+        final int generation;
+        final long length;
+        final int deltas;
+        final long deltaBytes;
+        final long[] digests;
+
+        Index(final int generation, final long length, final int deltas, final long deltaBytes, final long[] digests) {
+            this.generation = generation;
+            this.length = length;
+            this.deltas = deltas;
+            this.deltaBytes = deltaBytes;
+            this.digests = digests;
+        }
+    }
+
+    /**
+     * Receives one state stream. Writes a new base image when there is no
+     * usable previous snapshot, otherwise a delta holding the changed pages.
+     */
+    final class Writer extends OutputStream {
+        private final String name;
+        private final Index previous;
+        private final File tmp;
+        private final DataOutputStream out;
+        private final byte[] page = new byte[PAGE_SIZE];
+        private int fill;
+        private int pageIndex;
+        private long length;
+        private long written;
+        private long[] digests = new long[256];
+        private boolean committed;
+        private boolean closed;
+
+        private Writer(final String name, final Index previous) throws IOException {
+            this.name = name;
+            this.previous = previous;
+            tmp = new File(dir, name + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 4 * PAGE_SIZE));
+            if (!isFull()) {
+                out.writeInt(DELTA_MAGIC);
+                out.writeInt(PAGE_SIZE);
+            }
+        }
+
+        private boolean isFull() {
+            return previous == null || previous.deltas >= MAX_DELTAS;
+        }
+
+        /** Bytes of page data this snapshot wrote to storage. */
+        long getBytesWritten() {
+            return written;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            page[fill++] = (byte) b;
+            if (fill == PAGE_SIZE) {
+                flushPage();
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final int count = Math.min(len, PAGE_SIZE - fill);
+                System.arraycopy(b, off, page, fill, count);
+                fill += count;
+                off += count;
+                len -= count;
+                if (fill == PAGE_SIZE) {
+                    flushPage();
+                }
+            }
+        }
+
+        private void flushPage() throws IOException {
+            if (fill == 0) {
+                return;
+            }
+            final long digest = digest(page, fill);
+            if (pageIndex == digests.length) {
+                digests = Arrays.copyOf(digests, 2 * digests.length);
+            }
+            digests[pageIndex] = digest;
+            if (isFull()) {
+                out.write(page, 0, fill);
+                written += fill;
+            } else if ((long) (pageIndex + 1) * PAGE_SIZE > previous.length || previous.digests[pageIndex] != digest) {
+                out.writeInt(pageIndex);
+                out.writeInt(fill);
+                out.write(page, 0, fill);
+                written += fill;
+            }
+            length += fill;
+            pageIndex++;
+            fill = 0;
+        }
+
+        /** Makes this snapshot the latest one, compacting the chain if it has grown too long. */
+        void commit() throws IOException {
+            flushPage();
+            final boolean full = isFull();
+            if (!full) {
+                out.writeInt(END_OF_DELTA);
+            }
+            out.close();
+            closed = true;
+            final long[] pages = Arrays.copyOf(digests, pageIndex);
+            if (full) {
+                final int generation = previous == null ? 1 : previous.generation + 1;
+                replaceBase(name, tmp, previous, new Index(generation, length, 0, 0, pages));
+            } else {
+                final int sequence = previous.deltas + 1;
+                rename(tmp, deltaFile(name, previous.generation, sequence));
+                final long deltaBytes = previous.deltaBytes + written;
+                writeIndex(name, new Index(previous.generation, length, sequence, deltaBytes, pages));
+                deleteDeltas(name, previous.generation, sequence + 1);
+                if (deltaBytes > length / 2) {
+                    compact(name);
+                }
+            }
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+            if (!committed) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /** Reassembles a stream from its base image and the newest copy of every page in the delta chain. */
+    private final class Reader extends InputStream {
+        private final long length;
+        private final RandomAccessFile[] sources;
+        /** Per page, which file holds its newest copy: 0 for the base, N for the N-th delta. */
+        private final byte[] source;
+        private final long[] offset;
+        private final byte[] page = new byte[PAGE_SIZE];
+        private int loaded = -1;
+        private long position;
+
+        private Reader(final String name, final Index index) throws IOException {
+            length = index.length;
+            final int pages = pageCount(length);
+            source = new byte[pages];
+            offset = new long[pages];
+            for (int i = 0; i < pages; i++) {
+                offset[i] = (long) i * PAGE_SIZE;
+            }
+            sources = new RandomAccessFile[index.deltas + 1];
+            try {
+                sources[0] = new RandomAccessFile(baseFile(name, index.generation), "r");
+                for (int n = 1; n <= index.deltas; n++) {
+                    final File delta = deltaFile(name, index.generation, n);
+                    sources[n] = new RandomAccessFile(delta, "r");
+                    scanDelta(delta, n);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void scanDelta(final File file, final int sequence) throws IOException {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 4 * PAGE_SIZE));
+            try {
+                if (in.readInt() != DELTA_MAGIC || in.readInt() != PAGE_SIZE) {
+                    throw new IOException("Corrupt snapshot delta " + file);
+                }
+                long position = 8;
+                int pageIndex;
+                while ((pageIndex = in.readInt()) != END_OF_DELTA) {
+                    final int count = in.readInt();
+                    position += 8;
+                    if (pageIndex < source.length) {
+                        source[pageIndex] = (byte) sequence;
+                        offset[pageIndex] = position;
+                    }
+                    if (in.skipBytes(count) != count) {
+                        throw new EOFException("Truncated snapshot delta " + file);
+                    }
+                    position += count;
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        private int load(final int pageIndex) throws IOException {
+            final int count = (int) Math.min(PAGE_SIZE, length - (long) pageIndex * PAGE_SIZE);
+            if (loaded != pageIndex) {
+                final RandomAccessFile file = sources[source[pageIndex]];
+                file.seek(offset[pageIndex]);
+                file.readFully(page, 0, count);
+                loaded = pageIndex;
+            }
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= length) {
+                return -1;
+            }
+            load((int) (position / PAGE_SIZE));
+            return 0xff & page[(int) (position++ % PAGE_SIZE)];
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= length) {
+                return -1;
+            }
+            final int pageIndex = (int) (position / PAGE_SIZE);
+            final int start = (int) (position % PAGE_SIZE);
+            final int count = Math.min(len, load(pageIndex) - start);
+            System.arraycopy(page, start, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (final RandomAccessFile file : sources) {
+                if (file != null) {
+                    file.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package uk.co.jads.android.jpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory copy of a serialised state stream, held as a list of fixed-size
+ * chunks so that capturing tens of megabytes of guest state never needs one
+ * contiguous array or a copy on growth.
+ */
+final class StateBuffer extends OutputStream {
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    private byte[] current;
+    private int fill = CHUNK_SIZE;
+    private long size;
+
+    @Override
+    public void write(final int b) {
+        if (fill == CHUNK_SIZE) {
+            nextChunk();
+        }
+        current[fill++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) {
+        size += len;
+        while (len > 0) {
+            if (fill == CHUNK_SIZE) {
+                nextChunk();
+            }
+            final int count = Math.min(len, CHUNK_SIZE - fill);
+            System.arraycopy(b, off, current, fill, count);
+            fill += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    private void nextChunk() {
+        current = new byte[CHUNK_SIZE];
+        chunks.add(current);
+        fill = 0;
+    }
+
+    long size() {
+        return size;
+    }
+
+    void writeTo(final OutputStream out) throws IOException {
+        for (int i = 0; i < chunks.size(); i++) {
+            final byte[] chunk = chunks.get(i);
+            out.write(chunk, 0, chunk == current ? fill : CHUNK_SIZE);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package uk.co.jads.android.jpc;
+
+import java.util.BitSet;
+
+/**
+ * Finds the character cells of a text mode display that really changed.
+ * The VGA card reports one bounding box per update, so a blinking cursor
+ * at the bottom and a clock at the top make the whole 720x400 screen look
+ * dirty. Comparing the cells inside the box with a shadow copy of what was
+ * last seen narrows that down to a handful of 9x16 cells, which is all the
+ * display updater then converts and uploads.
+ *
+ * The card renders the glyphs itself, so cells are compared as pixels; the
+ * grid only decides the granularity. Callers only build a grid when the
+ * guest is in a text mode, as several graphics modes share the sizes of
+ * text modes. Should one slip through anyway, it costs some comparing but
+ * is never drawn wrong: it gives itself away by changing most cells at
+ * once, and after such a diff cells are taken as changed without comparing
+ * until the next recheck.
+ */
+final class TextCells {
+    /** Diffs that skip comparing after one found most cells changed. */
+    private static final int RECHECK = 30;
+    final int cellWidth;
+    final int cellHeight;
+    final int columns;
+    final int rows;
+    private final int width;
+    /** The display as of the last {@link #diff}. */
+    private final int[] shadow;
+    /** False until the shadow has been filled with the whole display. */
+    private boolean primed;
+    /** Diffs left before cells are compared again. */
+    private int busy;
+
+    private TextCells(final int width, final int height, final int cellWidth, final int cellHeight) {
+        this.width = width;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.columns = width / cellWidth;
+        this.rows = height / cellHeight;
+        this.shadow = new int[width * height];
+    }
+
+    /**
+     * Sizes alone do not tell text from graphics: 320x200 and 640x200 are
+     * also CGA and mode 13h graphics, 640x350 is EGA graphics. Only call
+     * this when the card is known to be in a text mode.
+     *
+     * @return a cell grid for a display of this size if it is one of the
+     *         VGA, EGA or CGA text mode sizes, otherwise null
+     */
+    static TextCells forDisplay(final int width, final int height) {
+        final int cellHeight = height == 400 ? 16 : height == 350 ? 14 : height == 200 ? 8 : 0;
+        if (cellHeight == 0) {
+            return null;
+        }
+        if (width == 720 || width == 360) {
+            return new TextCells(width, height, 9, cellHeight);
+        }
+        if (width == 640 || width == 320) {
+            return new TextCells(width, height, 8, cellHeight);
+        }
+        return null;
+    }
+
+    int getCells() {
+        return columns * rows;
+    }
+
+    /**
+     * Compares the cells overlapping region with the shadow copy, brings the
+     * shadow up to date and sets the bit of every cell that differed. The
+     * first call takes in the whole display, whatever the region, and while
+     * the display keeps changing most cells every cell in the region is set.
+     *
+     * @param force treat every cell in the region as changed, e.g. after a
+     *              state load replaced the display buffer
+     */
+    void diff(final int[] pixels, final DirtyRegion region, boolean force, final BitSet changed) {
+        int firstColumn = 0;
+        int endColumn = columns;
+        int firstRow = 0;
+        int endRow = rows;
+        if (!primed) {
+            primed = true;
+            force = true;
+        } else if (region.isEmpty()) {
+            return;
+        } else {
+            firstColumn = region.getLeft() / cellWidth;
+            endColumn = Math.min(columns, (region.getRight() + cellWidth - 1) / cellWidth);
+            firstRow = region.getTop() / cellHeight;
+            endRow = Math.min(rows, (region.getBottom() + cellHeight - 1) / cellHeight);
+        }
+        final boolean compare = !force && busy == 0;
+        if (busy > 0) {
+            busy--;
+        }
+        int differing = 0;
+        for (int row = firstRow; row < endRow; row++) {
+            for (int column = firstColumn; column < endColumn; column++) {
+                final int offset = row * cellHeight * width + column * cellWidth;
+                if (!compare || differs(pixels, offset)) {
+                    for (int y = 0, o = offset; y < cellHeight; y++, o += width) {
+                        System.arraycopy(pixels, o, shadow, o, cellWidth);
+                    }
+                    changed.set(row * columns + column);
+                    differing++;
+                }
+            }
+        }
+        if (compare && 2 * differing > (endRow - firstRow) * (endColumn - firstColumn)) {
+            busy = RECHECK;
+        }
+    }
+
+    private boolean differs(final int[] pixels, final int offset) {
+        for (int y = 0, o = offset; y < cellHeight; y++, o += width) {
+            for (int x = o, end = o + cellWidth; x < end; x++) {
+                if (pixels[x] != shadow[x]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets area to the full-width band of rows holding every set cell.
+     *
+     * @return false if no cell is set
+     */
+    boolean span(final BitSet cells, final DirtyRegion area) {
+        final int first = cells.nextSetBit(0);
+        if (first < 0 || first >= getCells()) {
+            return false;
+        }
+        final int firstRow = first / columns;
+        final int endRow = (Math.min(cells.length(), getCells()) - 1) / columns + 1;
+        area.clear();
+        area.add(0, firstRow * cellHeight, columns * cellWidth, (endRow - firstRow) * cellHeight);
+        return true;
+    }
+
+    /**
+     * Sets area to the next run of set cells within one row, starting at
+     * cell index from.
+     *
+     * @return the cell index after the run, or -1 if no cell is set
+     */
+    int nextRun(final BitSet cells, final int from, final DirtyRegion area) {
+        final int first = cells.nextSetBit(from);
+        if (first < 0 || first >= getCells()) {
+            return -1;
+        }
+        final int row = first / columns;
+        final int end = Math.min(cells.nextClearBit(first), (row + 1) * columns);
+        final int column = first - row * columns;
+        area.clear();
+        area.add(column * cellWidth, row * cellHeight, (end - first) * cellWidth, cellHeight);
+        return end;
+    }
+}
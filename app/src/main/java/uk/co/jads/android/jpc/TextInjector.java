@@ -0,0 +1,68 @@
+package uk.co.jads.android.jpc;
+
+import android.os.Handler;
+
+/**
+ * Types a string into the guest, one key stroke per tick of the UI thread's
+ * handler. Staying on the UI thread keeps it the only producer on the input
+ * queue, and the pace leaves the guest time to empty the BIOS keyboard
+ * buffer, which only holds 15 keys. Characters the layout cannot type are
+ * skipped.
+ */
+class TextInjector implements Runnable {
+    static final long KEY_INTERVAL_MS = 30;
+
+    private final Handler handler;
+    private final InputQueue input;
+    private final KeyMapping layout;
+    private final CharSequence text;
+    private final Runnable inputListener;
+    private int next;
+
+    TextInjector(final Handler handler, final InputQueue input, final KeyMapping layout,
+                 final CharSequence text, final Runnable inputListener) {
+        this.handler = handler;
+        this.input = input;
+        this.layout = layout;
+        this.text = text;
+        this.inputListener = inputListener;
+    }
+
+    void start() {
+        handler.post(this);
+    }
+
+    void cancel() {
+        handler.removeCallbacks(this);
+        next = text.length();
+    }
+
+    boolean isDone() {
+        return next >= text.length();
+    }
+
+    @Override
+    public void run() {
+        while (next < text.length()) {
+            final char c = text.charAt(next++);
+            final byte scancode = layout.getCharScancode(c);
+            if (scancode == 0) {
+                continue;
+            }
+            final boolean shift = layout.needsShift(c);
+            if (shift) {
+                input.keyPressed(KeyMapping.LEFT_SHIFT);
+            }
+            input.keyPressed(scancode);
+            input.keyReleased(scancode);
+            if (shift) {
+                input.keyReleased(KeyMapping.LEFT_SHIFT);
+            }
+            inputListener.run();
+            if (next < text.length()) {
+                handler.postDelayed(this, KEY_INTERVAL_MS);
+            }
+            return;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package uk.co.jads.android.jpc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class ButtonLayoutTest {
+    private static ButtonLayout load(final String text) throws IOException {
+        return ButtonLayout.load(new StringReader(text));
+    }
+
+    private static IOException rejected(final String text) {
+        try {
+            load(text);
+        } catch (IOException expected) {
+            return expected;
+        }
+        fail(text);
+        return null;
+    }
+
+    @Test
+    public void defaultIsTheOriginalFourButtons() {
+        final ButtonLayout layout = ButtonLayout.createDefault();
+        assertEquals(4, layout.size());
+        assertEquals("Keyboard", layout.labels[0]);
+        assertEquals(ButtonLayout.KEYBOARD, layout.actions[0]);
+        assertEquals(ButtonLayout.MOUSE, layout.actions[2]);
+        assertEquals(2, layout.arguments[2]);
+        assertEquals(ButtonLayout.KEY, layout.actions[3]);
+        assertEquals(1, layout.arguments[3]);
+    }
+
+    @Test
+    public void parsesEveryAction() throws IOException {
+        final ButtonLayout layout = load("# action [argument] label\n"
+                + "keyboard Keyboard\n"
+                + "\n"
+                + "mouse 1 Left mouse\n"
+                + "key 01 Esc\n"
+                + "key e0 48   Cursor  up\n");
+        assertEquals(4, layout.size());
+        assertEquals(ButtonLayout.KEYBOARD, layout.actions[0]);
+        assertEquals("Left mouse", layout.labels[1]);
+        assertEquals(ButtonLayout.MOUSE, layout.actions[1]);
+        assertEquals(1, layout.arguments[1]);
+        assertEquals(ButtonLayout.KEY, layout.actions[2]);
+        assertEquals(1, layout.arguments[2]);
+        assertEquals("Cursor up", layout.labels[3]);
+        assertEquals(KeyMapping.EXTENDED | 0x48, layout.arguments[3]);
+    }
+
+    @Test
+    public void rejectsBadLayouts() {
+        rejected("");
+        rejected("# only a comment\n");
+        rejected("keyboard\n");
+        rejected("mouse 1\n");
+        rejected("press 01 Esc\n");
+        assertNotNull(rejected("key 80 Esc\n").getCause());
+        assertNotNull(rejected("mouse left Left\n").getCause());
+    }
+
+    @Test
+    public void rejectsMoreButtonsThanFit() throws IOException {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < ButtonLayout.MAX_BUTTONS; i++) {
+            text.append("key 01 Esc\n");
+        }
+        assertEquals(ButtonLayout.MAX_BUTTONS, load(text.toString()).size());
+        text.append("key 01 Esc\n");
+        rejected(text.toString());
+    }
+}
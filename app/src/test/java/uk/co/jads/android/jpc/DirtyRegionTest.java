@@ -0,0 +1,85 @@
+package uk.co.jads.android.jpc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirtyRegionTest {
+    private final DirtyRegion region = new DirtyRegion(640, 480);
+
+    private static void assertBounds(final DirtyRegion region, final int left, final int top, final int right, final int bottom) {
+        assertEquals(left, region.getLeft());
+        assertEquals(top, region.getTop());
+        assertEquals(right, region.getRight());
+        assertEquals(bottom, region.getBottom());
+    }
+
+    @Test
+    public void startsEmpty() {
+        assertTrue(region.isEmpty());
+        assertEquals(0, region.getWidth());
+        assertEquals(0, region.getHeight());
+        assertEquals(0, region.getArea());
+    }
+
+    @Test
+    public void growsToTheBoundingBoxOfEverythingAdded() {
+        region.add(10, 20, 30, 40);
+        region.add(100, 5, 10, 10);
+        assertBounds(region, 10, 5, 110, 60);
+        assertEquals(100 * 55, region.getArea());
+    }
+
+    @Test
+    public void clipsToTheDisplay() {
+        region.add(-10, -20, 30, 40);
+        assertBounds(region, 0, 0, 20, 20);
+        region.add(630, 470, 100, 100);
+        assertBounds(region, 0, 0, 640, 480);
+    }
+
+    @Test
+    public void ignoresEmptyAndOffScreenRectangles() {
+        region.add(10, 10, 0, 5);
+        region.add(10, 10, 5, -1);
+        region.add(640, 0, 10, 10);
+        region.add(-20, 0, 10, 10);
+        assertTrue(region.isEmpty());
+    }
+
+    @Test
+    public void addAllCoversTheDisplayAndClearEmptiesIt() {
+        region.addAll();
+        assertBounds(region, 0, 0, 640, 480);
+        region.clear();
+        assertTrue(region.isEmpty());
+    }
+
+    @Test
+    public void addsAndCopiesOtherRegions() {
+        final DirtyRegion other = new DirtyRegion(640, 480);
+        region.add(other);
+        assertTrue(region.isEmpty());
+        other.add(5, 6, 7, 8);
+        region.add(other);
+        assertBounds(region, 5, 6, 12, 14);
+
+        final DirtyRegion copy = new DirtyRegion(0, 0);
+        copy.set(region);
+        assertBounds(copy, 5, 6, 12, 14);
+        copy.addAll();
+        assertBounds(copy, 0, 0, 640, 480);
+    }
+
+    @Test
+    public void resizeClearsAndChangesTheClip() {
+        region.add(0, 0, 10, 10);
+        region.resize(320, 200);
+        assertTrue(region.isEmpty());
+        region.add(300, 190, 100, 100);
+        assertBounds(region, 300, 190, 320, 200);
+        assertFalse(region.isEmpty());
+    }
+}
@@ -0,0 +1,139 @@
+package uk.co.jads.android.jpc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DisplayScalerTest {
+    private static final int OPAQUE = FrameConverter.OPAQUE;
+
+    @Test
+    public void noneKeepsTheDisplayAtTheTopLeft() {
+        final DisplayScaler scaler = new DisplayScaler(DisplayScaler.NONE, 640, 480, 1280, 800);
+        assertTrue(scaler.isIdentity());
+        assertEquals(0, scaler.getX());
+        assertEquals(0, scaler.getY());
+    }
+
+    @Test
+    public void withoutAViewNothingIsScaled() {
+        final DisplayScaler scaler = new DisplayScaler(DisplayScaler.SMOOTH, 640, 480, 0, 0);
+        assertEquals(DisplayScaler.NONE, scaler.getMode());
+        assertTrue(scaler.isIdentity());
+    }
+
+    @Test
+    public void integerUsesTheLargestWholeMultipleAndCentres() {
+        final DisplayScaler scaler = new DisplayScaler(DisplayScaler.INTEGER, 320, 200, 700, 500);
+        assertEquals(640, scaler.getWidth());
+        assertEquals(400, scaler.getHeight());
+        assertEquals(30, scaler.getX());
+        assertEquals(50, scaler.getY());
+        assertFalse(scaler.isStretched());
+    }
+
+    @Test
+    public void integerCapsTheOutputToAMultipleThatDividesTheShownOne() {
+        // 4x would be 1280x800, over the cap; 2x divides 4x and fits
+        final DisplayScaler scaler = new DisplayScaler(DisplayScaler.INTEGER, 320, 200, 1280, 1000);
+        assertEquals(640, scaler.getWidth());
+        assertEquals(400, scaler.getHeight());
+        assertEquals(1280, scaler.getDrawWidth());
+        assertEquals(800, scaler.getDrawHeight());
+        assertTrue(scaler.isStretched());
+        assertEquals(100, scaler.getY());
+    }
+
+    @Test
+    public void aspectFillsTheLargestCentredFourByThreeArea() {
+        final DisplayScaler scaler = new DisplayScaler(DisplayScaler.ASPECT, 720, 400, 800, 800);
+        assertEquals(800, scaler.getWidth());
+        assertEquals(600, scaler.getHeight());
+        assertEquals(0, scaler.getX());
+        assertEquals(100, scaler.getY());
+    }
+
+    @Test
+    public void outputNeverExceedsTheCap() {
+        for (int mode = DisplayScaler.NONE + 1; mode <= DisplayScaler.SMOOTH; mode++) {
+            final DisplayScaler scaler = new DisplayScaler(mode, 640, 480, 2560, 1600);
+            assertTrue((long) scaler.getWidth() * scaler.getHeight() <= DisplayScaler.MAX_PIXELS);
+        }
+    }
+
+    @Test
+    public void integerScalingRepeatsPixelsAndMakesThemOpaque() {
+        final DisplayScaler scaler = new DisplayScaler(DisplayScaler.INTEGER, 2, 2, 4, 4);
+        final DirtyRegion all = new DirtyRegion(4, 4);
+        all.addAll();
+        final int[] out = new int[16];
+        scaler.scale(new int[] {1, 2, 3, 4}, 2, all, out, 0, 4);
+        assertArrayEquals(new int[] {
+                OPAQUE | 1, OPAQUE | 1, OPAQUE | 2, OPAQUE | 2,
+                OPAQUE | 1, OPAQUE | 1, OPAQUE | 2, OPAQUE | 2,
+                OPAQUE | 3, OPAQUE | 3, OPAQUE | 4, OPAQUE | 4,
+                OPAQUE | 3, OPAQUE | 3, OPAQUE | 4, OPAQUE | 4}, out);
+    }
+
+    @Test
+    public void smoothScalingKeepsFlatAreasFlat() {
+        final DisplayScaler scaler = new DisplayScaler(DisplayScaler.SMOOTH, 4, 3, 10, 10);
+        final int[] source = new int[12];
+        Arrays.fill(source, 0x336699);
+        final DirtyRegion all = new DirtyRegion(scaler.getWidth(), scaler.getHeight());
+        all.addAll();
+        final int[] out = new int[scaler.getWidth() * scaler.getHeight()];
+        scaler.scale(source, 4, all, out, 0, scaler.getWidth());
+        for (final int pixel : out) {
+            assertEquals(OPAQUE | 0x336699, pixel);
+        }
+    }
+
+    @Test
+    public void mapCoversTheOutputASourceChangeAffects() {
+        final DisplayScaler scaler = new DisplayScaler(DisplayScaler.INTEGER, 320, 200, 640, 400);
+        final DirtyRegion source = new DirtyRegion(320, 200);
+        final DirtyRegion output = new DirtyRegion(0, 0);
+        source.add(10, 20, 1, 1);
+        scaler.map(source, output);
+        assertEquals(20, output.getLeft());
+        assertEquals(40, output.getTop());
+        assertEquals(2, output.getWidth());
+        assertEquals(2, output.getHeight());
+
+        source.clear();
+        scaler.map(source, output);
+        assertTrue(output.isEmpty());
+    }
+
+    @Test
+    public void scalingARectangleMatchesScalingEverything() {
+        final DisplayScaler scaler = new DisplayScaler(DisplayScaler.SMOOTH, 16, 10, 40, 30);
+        final int[] source = new int[160];
+        for (int i = 0; i < source.length; i++) {
+            source[i] = i * 0x010203;
+        }
+        final int w = scaler.getWidth();
+        final DirtyRegion all = new DirtyRegion(w, scaler.getHeight());
+        all.addAll();
+        final int[] full = new int[w * scaler.getHeight()];
+        scaler.scale(source, 16, all, full, 0, w);
+
+        final DirtyRegion changed = new DirtyRegion(16, 10);
+        changed.add(5, 3, 4, 2);
+        final DirtyRegion area = new DirtyRegion(0, 0);
+        scaler.map(changed, area);
+        final int[] part = new int[area.getArea()];
+        scaler.scale(source, 16, area, part, 0, area.getWidth());
+        for (int y = 0; y < area.getHeight(); y++) {
+            for (int x = 0; x < area.getWidth(); x++) {
+                assertEquals(full[(area.getTop() + y) * w + area.getLeft() + x], part[y * area.getWidth() + x]);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package uk.co.jads.android.jpc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameBufferCodecTest {
+    private static byte[] write(final int[] pixels, final boolean compress) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameBufferCodec.write(pixels, out, compress);
+        return out.toByteArray();
+    }
+
+    private static int[] roundTrip(final int[] pixels, final boolean compress) throws IOException {
+        final int[] read = new int[pixels.length];
+        Arrays.fill(read, 0x12345678);
+        FrameBufferCodec.read(read, new ByteArrayInputStream(write(pixels, compress)));
+        return read;
+    }
+
+    private static void assertRoundTrips(final int[] pixels) throws IOException {
+        assertArrayEquals(pixels, roundTrip(pixels, false));
+        assertArrayEquals(pixels, roundTrip(pixels, true));
+    }
+
+    private static int[] random(final int length, final int colours) {
+        final Random random = new Random(length);
+        final int[] pixels = new int[length];
+        for (int i = 0; i < length; i++) {
+            pixels[i] = colours > 0 ? random.nextInt(colours) : random.nextInt();
+        }
+        return pixels;
+    }
+
+    @Test
+    public void rawFramesKeepTheOriginalFormat() throws IOException {
+        final int[] pixels = {1, -2, 0x7fffffff};
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(write(pixels, false)));
+        assertEquals(3, in.readInt());
+        assertEquals(1, in.readInt());
+        assertEquals(-2, in.readInt());
+        assertEquals(0x7fffffff, in.readInt());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void flatFramesRoundTripAndShrink() throws IOException {
+        final int[] pixels = new int[640 * 480];
+        Arrays.fill(pixels, 0xff0000aa);
+        assertRoundTrips(pixels);
+        assertTrue(write(pixels, true).length < 100);
+    }
+
+    @Test
+    public void mixedRunsAndLiteralsRoundTrip() throws IOException {
+        assertRoundTrips(new int[] {1, 2, 2, 3, 3, 3, 4, 4, 4, 4, 5, 6, 6, 7});
+        assertRoundTrips(new int[] {7, 7, 7});
+        assertRoundTrips(new int[] {7, 7});
+        assertRoundTrips(new int[] {9});
+        assertRoundTrips(random(10000, 3));
+    }
+
+    @Test
+    public void emptyFramesRoundTrip() throws IOException {
+        assertRoundTrips(new int[0]);
+    }
+
+    @Test
+    public void framesLargerThanAChunkRoundTrip() throws IOException {
+        final int[] pixels = random(3 * FrameBufferCodec.CHUNK_BYTES / 4 + 17, 0);
+        assertRoundTrips(pixels);
+        final int[] runs = new int[pixels.length];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = i / 1000;
+        }
+        assertRoundTrips(runs);
+    }
+
+    @Test
+    public void readingStopsAtTheEndOfTheFrame() throws IOException {
+        for (final boolean compress : new boolean[] {false, true}) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            FrameBufferCodec.write(random(5000, 4), out, compress);
+            new DataOutputStream(out).writeInt(0xcafe);
+            final ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            FrameBufferCodec.read(new int[5000], in);
+            assertEquals(0xcafe, new DataInputStream(in).readInt());
+        }
+    }
+
+    @Test
+    public void rejectsAFrameOfAnotherSize() throws IOException {
+        final byte[] saved = write(new int[100], true);
+        try {
+            FrameBufferCodec.read(new int[101], new ByteArrayInputStream(saved));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsPacketsRunningPastTheFrame() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(-4);
+        out.writeInt(2);
+        out.writeInt(-5);
+        out.writeInt(0xff);
+        try {
+            FrameBufferCodec.read(new int[4], new ByteArrayInputStream(bytes.toByteArray()));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedFrames() throws IOException {
+        for (final boolean compress : new boolean[] {false, true}) {
+            final byte[] saved = write(random(1000, 2), compress);
+            try {
+                FrameBufferCodec.read(new int[1000], new ByteArrayInputStream(Arrays.copyOf(saved, saved.length - 4)));
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+    }
+}
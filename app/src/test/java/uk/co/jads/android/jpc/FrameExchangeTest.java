@@ -0,0 +1,67 @@
+package uk.co.jads.android.jpc;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FrameExchangeTest {
+    private final FrameExchange<String> frames = new FrameExchange<String>("a", "b", "c");
+
+    @Test
+    public void producerAndConsumerStartOnDifferentSlots() {
+        assertNotSame(frames.back(), frames.front());
+    }
+
+    @Test
+    public void frontShowsThePublishedFrame() {
+        final String rendered = frames.back();
+        frames.publish();
+        assertSame(rendered, frames.front());
+        assertNotSame(rendered, frames.back());
+    }
+
+    @Test
+    public void frontKeepsItsFrameUntilANewOneIsPublished() {
+        final String rendered = frames.back();
+        frames.publish();
+        assertSame(rendered, frames.front());
+        assertSame(rendered, frames.front());
+    }
+
+    @Test
+    public void consumerGetsTheNewestOfSeveralPublishedFrames() {
+        frames.publish();
+        frames.publish();
+        final String newest = frames.back();
+        frames.publish();
+        assertSame(newest, frames.front());
+    }
+
+    @Test
+    public void producerNeverRendersIntoTheFrameBeingDrawn() {
+        for (int i = 0; i < 10; i++) {
+            frames.publish();
+            final String drawn = frames.front();
+            for (int j = 0; j < 4; j++) {
+                assertNotSame(drawn, frames.back());
+                frames.publish();
+            }
+        }
+    }
+
+    @Test
+    public void allThreeSlotsStayInUse() {
+        final Set<String> seen = new HashSet<String>();
+        for (int i = 0; i < 6; i++) {
+            seen.add(frames.back());
+            frames.publish();
+            seen.add(frames.front());
+        }
+        assertEquals(FrameExchange.SLOTS, seen.size());
+    }
+}
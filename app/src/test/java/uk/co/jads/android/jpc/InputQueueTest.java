@@ -0,0 +1,110 @@
+package uk.co.jads.android.jpc;
+
+import org.jpc.emulator.peripheral.Keyboard;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InputQueueTest {
+    private final InputQueue queue = new InputQueue();
+    private final List<String> received = new ArrayList<String>();
+    private final Keyboard keyboard = new Keyboard() {
+        @Override
+        public void keyPressed(final byte scancode) {
+            received.add("press " + scancode);
+        }
+
+        @Override
+        public void keyReleased(final byte scancode) {
+            received.add("release " + scancode);
+        }
+
+        @Override
+        public void putMouseEvent(final int dx, final int dy, final int dz, final int buttons) {
+            received.add("mouse " + dx + " " + dy + " " + dz + " " + buttons);
+        }
+    };
+
+    @Test
+    public void keysArriveInOrder() throws IOException {
+        queue.keyPressed((byte) 42);
+        queue.keyPressed((byte) 30);
+        queue.keyReleased((byte) 30);
+        queue.keyReleased((byte) 42);
+        assertFalse(queue.isEmpty());
+        queue.drain(keyboard);
+        assertTrue(queue.isEmpty());
+        assertEquals(4, received.size());
+        assertEquals("press 42", received.get(0));
+        assertEquals("press 30", received.get(1));
+        assertEquals("release 30", received.get(2));
+        assertEquals("release 42", received.get(3));
+    }
+
+    @Test
+    public void mergesMotionUntilTheButtonsChange() throws IOException {
+        queue.putMouseEvent(1, 2, 0, 0);
+        queue.putMouseEvent(3, -4, 1, 0);
+        queue.putMouseEvent(5, 0, 0, 1);
+        queue.putMouseEvent(0, 0, 0, 0);
+        queue.drain(keyboard);
+        assertEquals(3, received.size());
+        assertEquals("mouse 4 -2 1 0", received.get(0));
+        assertEquals("mouse 5 0 0 1", received.get(1));
+        assertEquals("mouse 0 0 0 0", received.get(2));
+    }
+
+    @Test
+    public void keysSplitMergedMotion() throws IOException {
+        queue.putMouseEvent(1, 1, 0, 0);
+        queue.keyPressed((byte) 30);
+        queue.putMouseEvent(1, 1, 0, 0);
+        queue.drain(keyboard);
+        assertEquals(3, received.size());
+        assertEquals("press 30", received.get(1));
+    }
+
+    @Test
+    public void splitsMotionOneMousePacketCannotHold() throws IOException {
+        queue.putMouseEvent(300, -200, 0, 0);
+        queue.putMouseEvent(300, -200, 9, 0);
+        queue.drain(keyboard);
+        assertEquals(3, received.size());
+        assertEquals("mouse 255 -255 7 0", received.get(0));
+        assertEquals("mouse 255 -145 2 0", received.get(1));
+        assertEquals("mouse 90 0 0 0", received.get(2));
+    }
+
+    @Test
+    public void releasesOfQueuedPressesUseTheReserve() throws IOException {
+        final long dropped = Metrics.INPUT_DROPPED.get();
+        queue.keyPressed((byte) 30);
+        int presses = 1;
+        while (presses < InputQueue.CAPACITY) {
+            queue.keyPressed((byte) 31);
+            if (Metrics.INPUT_DROPPED.get() != dropped) {
+                break;
+            }
+            presses++;
+        }
+        assertEquals(InputQueue.CAPACITY - InputQueue.RESERVE, presses);
+
+        // a press while full is dropped, and so is its release
+        queue.keyPressed((byte) 32);
+        queue.keyReleased((byte) 32);
+        queue.keyReleased((byte) 31);
+        queue.keyReleased((byte) 30);
+        assertEquals(dropped + 3, Metrics.INPUT_DROPPED.get());
+
+        queue.drain(keyboard);
+        assertEquals(presses + 2, received.size());
+        assertEquals("release 31", received.get(received.size() - 2));
+        assertEquals("release 30", received.get(received.size() - 1));
+    }
+}
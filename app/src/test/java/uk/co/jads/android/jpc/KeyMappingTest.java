@@ -0,0 +1,104 @@
+package uk.co.jads.android.jpc;
+
+import android.view.KeyEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyMappingTest {
+    private KeyMapping saved;
+
+    @Before
+    public void saveLayout() {
+        saved = KeyMapping.getLayout();
+    }
+
+    @After
+    public void restoreLayout() {
+        KeyMapping.setLayout(saved);
+    }
+
+    private static KeyMapping load(final String text) throws IOException {
+        return KeyMapping.load(new StringReader(text));
+    }
+
+    private static void assertRejected(final String text) {
+        try {
+            load(text);
+            fail(text);
+        } catch (IOException expected) {
+            assertNotNull(expected.getCause());
+        }
+    }
+
+    @Test
+    public void defaultIsTheUsLayout() {
+        assertEquals(30, KeyMapping.getScancode(KeyEvent.KEYCODE_A));
+        assertEquals((byte) (KeyMapping.EXTENDED | 0x48), KeyMapping.getScancode(KeyEvent.KEYCODE_DPAD_UP));
+        assertEquals(0, KeyMapping.getScancode(-1));
+        assertEquals(0, KeyMapping.getScancode(100000));
+    }
+
+    @Test
+    public void charactersKnowWhetherTheyNeedShift() {
+        final KeyMapping layout = KeyMapping.getLayout();
+        assertEquals(30, layout.getCharScancode('a'));
+        assertEquals(30, layout.getCharScancode('A'));
+        assertFalse(layout.needsShift('a'));
+        assertTrue(layout.needsShift('A'));
+        assertEquals(0, layout.getCharScancode('\u20ac'));
+    }
+
+    @Test
+    public void loadedEntriesOverrideTheDefaults() throws IOException {
+        final KeyMapping layout = load("# German keys\n"
+                + "\n"
+                + "key KEYCODE_Y 2c\n"
+                + "key 54 15\n"
+                + "key KEYCODE_CTRL_RIGHT E0 1d\n"
+                + "char z 15\n"
+                + "char Y 2c shift\n"
+                + "char \\u0023 2b shift\n");
+        KeyMapping.setLayout(layout);
+        assertEquals(0x2c, KeyMapping.getScancode(KeyEvent.KEYCODE_Y));
+        assertEquals(0x15, KeyMapping.getScancode(54));
+        assertEquals((byte) 0x9d, KeyMapping.getScancode(KeyEvent.KEYCODE_CTRL_RIGHT));
+        assertEquals(30, KeyMapping.getScancode(KeyEvent.KEYCODE_A));
+        assertEquals(0x15, layout.getCharScancode('z'));
+        assertFalse(layout.needsShift('z'));
+        assertEquals(0x2c, layout.getCharScancode('Y'));
+        assertTrue(layout.needsShift('Y'));
+        assertEquals(0x2b, layout.getCharScancode('#'));
+    }
+
+    @Test
+    public void rejectsScancodesOutsideTheMakeCodes() {
+        assertRejected("key KEYCODE_A 9e\n");
+        assertRejected("key KEYCODE_A e0 c8\n");
+        assertRejected("char a 00\n");
+        assertRejected("key KEYCODE_A zz\n");
+    }
+
+    @Test
+    public void rejectsMalformedEntries() {
+        assertRejected("key KEYCODE_NO_SUCH_KEY 1e\n");
+        assertRejected("char ab 1e\n");
+        assertRejected("key KEYCODE_A e1 1d 45\n");
+        try {
+            load("button a 1e\n");
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("line 1"));
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package uk.co.jads.android.jpc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotStoreTest {
+    private File dir;
+    private SnapshotStore store;
+
+    @Before
+    public void createStore() throws IOException {
+        dir = File.createTempFile("snapshots", "");
+        dir.delete();
+        store = new SnapshotStore(dir);
+    }
+
+    @After
+    public void deleteStore() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private long save(final byte[] state) throws IOException {
+        final SnapshotStore.Writer writer = store.write("pc");
+        try {
+            writer.write(state, 0, state.length);
+            writer.commit();
+            return writer.getBytesWritten();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private byte[] load() throws IOException {
+        final InputStream in = store.read("pc");
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1000];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private int deltaFiles() {
+        int count = 0;
+        for (final String file : dir.list()) {
+            if (file.endsWith(".delta")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] state(final int length) {
+        final byte[] state = new byte[length];
+        new Random(length).nextBytes(state);
+        return state;
+    }
+
+    @Test
+    public void firstSaveIsFull() throws IOException {
+        assertFalse(store.hasSnapshot("pc"));
+        final byte[] state = state(10 * SnapshotStore.PAGE_SIZE + 123);
+        assertEquals(state.length, save(state));
+        assertTrue(store.hasSnapshot("pc"));
+        assertArrayEquals(state, load());
+    }
+
+    @Test
+    public void deltasHoldOnlyTheChangedPages() throws IOException {
+        final byte[] state = state(16 * SnapshotStore.PAGE_SIZE);
+        save(state);
+        state[5 * SnapshotStore.PAGE_SIZE + 7]++;
+        assertEquals(SnapshotStore.PAGE_SIZE, save(state));
+        assertEquals(1, deltaFiles());
+        assertArrayEquals(state, load());
+
+        assertEquals(0, save(state));
+        assertArrayEquals(state, load());
+    }
+
+    @Test
+    public void deltasFollowTheLengthOfTheStream() throws IOException {
+        final byte[] state = state(16 * SnapshotStore.PAGE_SIZE);
+        save(state);
+        final byte[] longer = Arrays.copyOf(state, state.length + 100);
+        longer[longer.length - 1] = 42;
+        assertEquals(100, save(longer));
+        assertArrayEquals(longer, load());
+
+        final byte[] shorter = Arrays.copyOf(state, state.length - 5000);
+        save(shorter);
+        assertArrayEquals(shorter, load());
+    }
+
+    @Test
+    public void aLongChainIsFoldedIntoAFullSave() throws IOException {
+        final byte[] state = state(32 * SnapshotStore.PAGE_SIZE);
+        save(state);
+        for (int i = 0; i < SnapshotStore.MAX_DELTAS; i++) {
+            state[i * SnapshotStore.PAGE_SIZE]++;
+            assertEquals(SnapshotStore.PAGE_SIZE, save(state));
+        }
+        assertEquals(SnapshotStore.MAX_DELTAS, deltaFiles());
+        state[0]++;
+        assertEquals(state.length, save(state));
+        assertEquals(0, deltaFiles());
+        assertArrayEquals(state, load());
+    }
+
+    @Test
+    public void compactKeepsTheContent() throws IOException {
+        final byte[] state = state(16 * SnapshotStore.PAGE_SIZE);
+        save(state);
+        state[3]++;
+        save(state);
+        state[9 * SnapshotStore.PAGE_SIZE]++;
+        save(state);
+        assertEquals(2, deltaFiles());
+        store.compact("pc");
+        assertEquals(0, deltaFiles());
+        assertArrayEquals(state, load());
+        state[3]++;
+        assertEquals(SnapshotStore.PAGE_SIZE, save(state));
+        assertArrayEquals(state, load());
+    }
+
+    @Test
+    public void anUncommittedSaveLeavesTheSnapshotAlone() throws IOException {
+        final byte[] state = state(16 * SnapshotStore.PAGE_SIZE);
+        save(state);
+        final SnapshotStore.Writer writer = store.write("pc");
+        writer.write(new byte[5000], 0, 5000);
+        writer.close();
+        assertArrayEquals(state, load());
+        assertFalse(new File(dir, "pc.tmp").exists());
+    }
+
+    @Test
+    public void leftoversOfAnInterruptedSaveAreIgnored() throws IOException {
+        final byte[] state = state(4 * SnapshotStore.PAGE_SIZE);
+        save(state);
+        final FileOutputStream out = new FileOutputStream(new File(dir, "pc.2.base"));
+        out.write(new byte[100]);
+        out.close();
+        assertArrayEquals(state, load());
+        state[0]++;
+        save(state);
+        store.compact("pc");
+        assertArrayEquals(state, load());
+    }
+
+    @Test
+    public void deleteRemovesEveryFile() throws IOException {
+        final byte[] state = state(16 * SnapshotStore.PAGE_SIZE);
+        save(state);
+        state[0]++;
+        save(state);
+        store.delete("pc");
+        assertFalse(store.hasSnapshot("pc"));
+        assertEquals(0, dir.list().length);
+    }
+}
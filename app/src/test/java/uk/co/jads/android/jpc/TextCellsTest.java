@@ -0,0 +1,120 @@
+package uk.co.jads.android.jpc;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TextCellsTest {
+    private final TextCells cells = TextCells.forDisplay(720, 400);
+    private final int[] pixels = new int[720 * 400];
+    private final DirtyRegion region = new DirtyRegion(720, 400);
+    private final BitSet changed = new BitSet();
+
+    private void diff(final boolean force) {
+        changed.clear();
+        cells.diff(pixels, region, force, changed);
+    }
+
+    @Test
+    public void gridsOnlyForTextModeSizes() {
+        assertEquals(9, cells.cellWidth);
+        assertEquals(16, cells.cellHeight);
+        assertEquals(80 * 25, cells.getCells());
+        final TextCells cga = TextCells.forDisplay(640, 200);
+        assertEquals(8, cga.cellWidth);
+        assertEquals(8, cga.cellHeight);
+        assertNull(TextCells.forDisplay(800, 600));
+        assertNull(TextCells.forDisplay(720, 480));
+    }
+
+    @Test
+    public void firstDiffTakesInTheWholeDisplay() {
+        diff(false);
+        assertEquals(cells.getCells(), changed.cardinality());
+    }
+
+    @Test
+    public void findsTheCellThatChanged() {
+        diff(false);
+        region.addAll();
+        diff(false);
+        assertTrue(changed.isEmpty());
+
+        pixels[(5 * 16 + 3) * 720 + 10 * 9 + 4] = 1;
+        diff(false);
+        assertEquals(1, changed.cardinality());
+        assertTrue(changed.get(5 * 80 + 10));
+        diff(false);
+        assertTrue(changed.isEmpty());
+    }
+
+    @Test
+    public void onlyComparesCellsInTheRegion() {
+        diff(false);
+        pixels[0] = 1;
+        region.add(360, 200, 10, 10);
+        diff(false);
+        assertTrue(changed.isEmpty());
+        region.add(0, 0, 1, 1);
+        diff(false);
+        assertEquals(1, changed.cardinality());
+        assertTrue(changed.get(0));
+    }
+
+    @Test
+    public void forceMarksEveryCellInTheRegion() {
+        diff(false);
+        region.add(0, 0, 18, 16);
+        diff(true);
+        assertEquals(2, changed.cardinality());
+    }
+
+    @Test
+    public void stopsComparingWhileMostCellsChange() {
+        diff(false);
+        region.addAll();
+        for (int i = 0; i < pixels.length; i += 9) {
+            pixels[i]++;
+        }
+        diff(false);
+        assertEquals(cells.getCells(), changed.cardinality());
+        // nothing changed, but the display is taken as busy
+        diff(false);
+        assertEquals(cells.getCells(), changed.cardinality());
+    }
+
+    @Test
+    public void runsStopAtTheEndOfARow() {
+        final DirtyRegion area = new DirtyRegion(720, 400);
+        changed.set(78, 82);
+        int next = cells.nextRun(changed, 0, area);
+        assertEquals(80, next);
+        assertEquals(78 * 9, area.getLeft());
+        assertEquals(0, area.getTop());
+        assertEquals(2 * 9, area.getWidth());
+        assertEquals(16, area.getHeight());
+        next = cells.nextRun(changed, next, area);
+        assertEquals(82, next);
+        assertEquals(0, area.getLeft());
+        assertEquals(16, area.getTop());
+        assertEquals(-1, cells.nextRun(changed, next, area));
+    }
+
+    @Test
+    public void spanCoversTheRowsOfAllSetCells() {
+        final DirtyRegion area = new DirtyRegion(720, 400);
+        assertFalse(cells.span(changed, area));
+        changed.set(85);
+        changed.set(3 * 80 + 2);
+        assertTrue(cells.span(changed, area));
+        assertEquals(0, area.getLeft());
+        assertEquals(720, area.getRight());
+        assertEquals(16, area.getTop());
+        assertEquals(4 * 16, area.getBottom());
+    }
+}
@@ -0,0 +1,123 @@
+package uk.co.jads.android.jpc;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sample counts of guest code addresses, keyed by linear address and whether
+ * the CPU was in protected mode. The headless runner takes one sample per
+ * pc.execute() call, and that call runs a whole batch of blocks, so what is
+ * counted is where batches start: code the guest spends longer in is hit
+ * more often, but a block's count is not its execution count. The counts
+ * live in a primitive open-addressing table so that a sample costs a hash
+ * probe and no allocation.
+ *
+ * The ranking is biased, and should be read as a hint rather than a
+ * measurement. A batch stops after a set number of blocks or at an
+ * interrupt, so the sample lands on whatever block follows that point. A
+ * block that only ever runs in the middle of a batch is never seen. In a
+ * loop whose length in blocks divides the batch size every sample hits the
+ * same block, and the rest of the loop is missing from the profile however
+ * hot it is. Counting every block needs a hook in the block dispatcher,
+ * which is part of the JPC core and not in this tree.
+ *
+ * Compiling the listed blocks ahead of time into a jar the app ships is
+ * deferred for the same reason: the block compiler entry point is in the
+ * core. This profile is meant to be that step's input once it exists.
+ */
+final class BlockProfile {
+    private static final long PROTECTED = 1L << 32;
+    private static final long EMPTY = -1;
+
+    private long[] keys = newKeys(1 << 12);
+    private long[] counts = new long[keys.length];
+    private int size;
+    private long total;
+
+    private static long[] newKeys(final int capacity) {
+        final long[] keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+
+    void record(final int address, final boolean protectedMode) {
+        final long key = (address & 0xffffffffL) | (protectedMode ? PROTECTED : 0);
+        total++;
+        int i = slot(keys, key);
+        if (keys[i] == EMPTY) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                i = slot(keys, key);
+            }
+            keys[i] = key;
+            size++;
+        }
+        counts[i]++;
+    }
+
+    private static int slot(final long[] keys, final long key) {
+        final int mask = keys.length - 1;
+        int i = (int) (key ^ (key >>> 17)) * 0x9e3779b9 & mask;
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        final long[] oldKeys = keys;
+        final long[] oldCounts = counts;
+        keys = newKeys(2 * oldKeys.length);
+        counts = new long[keys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                final int j = slot(keys, oldKeys[i]);
+                keys[j] = oldKeys[i];
+                counts[j] = oldCounts[i];
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Writes the sampled addresses most frequent first as "mode address
+     * samples cumulative%" lines, stopping once the listed addresses account
+     * for the given share of all samples; the rare tail is not worth
+     * precompiling.
+     */
+    void write(final String file, final String workload, final double coverage) throws IOException {
+        final Integer[] order = new Integer[size];
+        for (int i = 0, n = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                order[n++] = i;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                return counts[a] != counts[b] ? (counts[a] > counts[b] ? -1 : 1) : Long.compare(keys[a], keys[b]);
+            }
+        });
+        final PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("# JPC sampled profile of batch entry points: " + workload + ", " + size + " addresses, " + total + " samples");
+            long seen = 0;
+            for (final int i : order) {
+                seen += counts[i];
+                out.println(String.format("%s %08x %d %.2f", (keys[i] & PROTECTED) != 0 ? "pm" : "rm",
+                        keys[i] & 0xffffffffL, counts[i], 100.0 * seen / total));
+                if (seen >= coverage * total) {
+                    break;
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
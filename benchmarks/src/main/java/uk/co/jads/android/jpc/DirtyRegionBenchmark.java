@@ -0,0 +1,64 @@
+package uk.co.jads.android.jpc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dirty-region bookkeeping of one display update: the VGA card's dirty
+ * rectangle is merged into every frame slot, the back slot is published and
+ * cleared, as the PCMonitor updater does it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DirtyRegionBenchmark {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int RECTS = 1024;
+
+    private final DirtyRegion[] slots = new DirtyRegion[FrameExchange.SLOTS];
+    private final DirtyRegion published = new DirtyRegion(WIDTH, HEIGHT);
+    private final int[] rects = new int[4 * RECTS];
+    private int next;
+    private int back;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new DirtyRegion(WIDTH, HEIGHT);
+        }
+        final Random random = new Random(42);
+        for (int i = 0; i < rects.length; i += 4) {
+            // some rectangles hang over the edge to exercise the clipping
+            rects[i] = random.nextInt(WIDTH + 64) - 32;
+            rects[i + 1] = random.nextInt(HEIGHT + 64) - 32;
+            rects[i + 2] = random.nextInt(128);
+            rects[i + 3] = random.nextInt(128);
+        }
+    }
+
+    @Benchmark
+    public int update() {
+        final int r = next;
+        next = (next + 4) % rects.length;
+        for (final DirtyRegion slot : slots) {
+            slot.add(rects[r], rects[r + 1], rects[r + 2], rects[r + 3]);
+        }
+        final DirtyRegion stale = slots[back];
+        back = (back + 1) % slots.length;
+        if (stale.isEmpty()) {
+            return 0;
+        }
+        published.set(stale);
+        stale.clear();
+        return published.getArea();
+    }
+}
@@ -0,0 +1,72 @@
+package uk.co.jads.android.jpc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling a guest display to a 1440x1080 view: the whole frame, as after a
+ * mode change, and a dirty square, as for a typical update.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DisplayScalerBenchmark {
+    private static final int VIEW_WIDTH = 1440;
+    private static final int VIEW_HEIGHT = 1080;
+
+    @Param({"320x200", "640x480"})
+    public String size;
+    @Param({"aspect", "smooth"})
+    public String mode;
+    /** Side of the square source rectangle scaled by the *Dirty benchmarks. */
+    @Param({"64"})
+    public int dirty;
+
+    private int width;
+    private int[] vga;
+    private int[] scaled;
+    private DisplayScaler scaler;
+    private final DirtyRegion source = new DirtyRegion(0, 0);
+    private final DirtyRegion full = new DirtyRegion(0, 0);
+    private final DirtyRegion area = new DirtyRegion(0, 0);
+
+    @Setup
+    public void setUp() {
+        final int x = size.indexOf('x');
+        width = Integer.parseInt(size.substring(0, x));
+        final int height = Integer.parseInt(size.substring(x + 1));
+        vga = new int[width * height];
+        final Random random = new Random(42);
+        for (int i = 0; i < vga.length; i++) {
+            vga[i] = random.nextInt() & 0xffffff;
+        }
+        scaler = new DisplayScaler(mode.equals("smooth") ? DisplayScaler.SMOOTH : DisplayScaler.ASPECT, width, height, VIEW_WIDTH, VIEW_HEIGHT);
+        scaled = new int[scaler.getWidth() * scaler.getHeight()];
+        full.resize(scaler.getWidth(), scaler.getHeight());
+        full.addAll();
+        source.resize(width, height);
+        source.add((width - dirty) / 2, (height - dirty) / 2, dirty, dirty);
+    }
+
+    @Benchmark
+    public int[] scaleFull() {
+        scaler.scale(vga, width, full, scaled, 0, scaler.getWidth());
+        return scaled;
+    }
+
+    @Benchmark
+    public int[] scaleDirty() {
+        scaler.map(source, area);
+        scaler.scale(vga, width, area, scaled, 0, area.getWidth());
+        return scaled;
+    }
+}
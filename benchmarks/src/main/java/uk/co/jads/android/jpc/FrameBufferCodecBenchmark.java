@@ -0,0 +1,159 @@
+package uk.co.jads.android.jpc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PCMonitor.saveState/loadState: the original byte-array round trip against
+ * FrameBufferCodec, raw and run-length encoded. "desktop" frames are mostly
+ * flat colour, as a text mode or DOS screen would be, "noise" frames have no
+ * runs at all.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameBufferCodecBenchmark {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @Param({"desktop", "noise"})
+    public String content;
+
+    private int[] pixels;
+    private int[] restored;
+    private final Sink sink = new Sink();
+    private byte[] legacy;
+    private byte[] raw;
+    private byte[] compressed;
+
+    @Setup
+    public void setUp() throws IOException {
+        pixels = new int[WIDTH * HEIGHT];
+        final Random random = new Random(42);
+        if (content.equals("noise")) {
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = random.nextInt();
+            }
+        } else {
+            for (int i = 0; i < pixels.length; i++) {
+                // flat background with a scattering of text-like detail
+                pixels[i] = random.nextInt(16) == 0 ? 0xffffff : 0x0000aa;
+            }
+        }
+        restored = new int[pixels.length];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        legacySave(pixels, out);
+        legacy = out.toByteArray();
+        out.reset();
+        FrameBufferCodec.write(pixels, out, false);
+        raw = out.toByteArray();
+        out.reset();
+        FrameBufferCodec.write(pixels, out, true);
+        compressed = out.toByteArray();
+    }
+
+    @Benchmark
+    public long legacySave() throws IOException {
+        sink.count = 0;
+        legacySave(pixels, sink);
+        return sink.count;
+    }
+
+    @Benchmark
+    public long saveRaw() throws IOException {
+        sink.count = 0;
+        FrameBufferCodec.write(pixels, sink, false);
+        return sink.count;
+    }
+
+    @Benchmark
+    public long saveCompressed() throws IOException {
+        sink.count = 0;
+        FrameBufferCodec.write(pixels, sink, true);
+        return sink.count;
+    }
+
+    @Benchmark
+    public int[] legacyLoad() throws IOException {
+        legacyLoad(restored, new ByteArrayInputStream(legacy));
+        return restored;
+    }
+
+    @Benchmark
+    public int[] loadRaw() throws IOException {
+        FrameBufferCodec.read(restored, new ByteArrayInputStream(raw));
+        return restored;
+    }
+
+    @Benchmark
+    public int[] loadCompressed() throws IOException {
+        FrameBufferCodec.read(restored, new ByteArrayInputStream(compressed));
+        return restored;
+    }
+
+    /** PCMonitor.saveState as it was before FrameBufferCodec. */
+    private static void legacySave(final int[] rawImageData, final OutputStream out) throws IOException {
+        byte[] dummy = new byte[rawImageData.length * 4];
+        for (int i = 0, j = 0; i < rawImageData.length; i++) {
+            int val = rawImageData[i];
+            dummy[j++] = (byte) (val >> 24);
+            dummy[j++] = (byte) (val >> 16);
+            dummy[j++] = (byte) (val >> 8);
+            dummy[j++] = (byte) (val);
+        }
+        DataOutputStream output = new DataOutputStream(out);
+        output.writeInt(rawImageData.length);
+        out.write(dummy);
+        out.flush();
+    }
+
+    /** PCMonitor.loadState as it was before FrameBufferCodec. */
+    private static void legacyLoad(final int[] rawImageData, final InputStream in) throws IOException {
+        DataInputStream input = new DataInputStream(in);
+        int len = input.readInt();
+        if (len != rawImageData.length) {
+            throw new IOException("Image size not consistent with saved image state");
+        }
+        byte[] dummy = new byte[len * 4];
+        input.readFully(dummy);
+        for (int i = 0, j = 0; i < len; i++) {
+            int val = 0;
+            val |= (0xff & dummy[j++]) << 24;
+            val |= (0xff & dummy[j++]) << 16;
+            val |= (0xff & dummy[j++]) << 8;
+            val |= 0xff & dummy[j++];
+            rawImageData[i] = val;
+        }
+    }
+
+    /** Counts and discards what is written, so only the encoding is measured. */
+    private static final class Sink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package uk.co.jads.android.jpc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting a VGA frame ready for a bitmap: the alpha pass the original
+ * onDraw ran over the whole display buffer in place, against the copy paths
+ * the display updater uses now for the full frame and for a dirty rectangle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameConversionBenchmark {
+    @Param({"320x200", "640x480"})
+    public String size;
+    /** Side of the square dirty rectangle copied by the *Dirty benchmarks. */
+    @Param({"64"})
+    public int dirty;
+
+    private int width;
+    private int height;
+    private int[] vga;
+    private int[] converted;
+
+    @Setup
+    public void setUp() {
+        final int x = size.indexOf('x');
+        width = Integer.parseInt(size.substring(0, x));
+        height = Integer.parseInt(size.substring(x + 1));
+        vga = new int[width * height];
+        final Random random = new Random(42);
+        for (int i = 0; i < vga.length; i++) {
+            // VGA pixels come without alpha
+            vga[i] = random.nextInt() & 0xffffff;
+        }
+        converted = new int[vga.length];
+    }
+
+    @Benchmark
+    public int[] legacyAlphaPass() {
+        final int[] arr = vga;
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] |= 0xff000000;
+        }
+        return arr;
+    }
+
+    @Benchmark
+    public int[] copyOpaqueFull() {
+        FrameConverter.copyOpaque(vga, 0, width, converted, 0, width, width, height);
+        return converted;
+    }
+
+    @Benchmark
+    public int[] copyOpaqueDirty() {
+        final int offset = (height - dirty) / 2 * width + (width - dirty) / 2;
+        FrameConverter.copyOpaque(vga, offset, width, converted, offset, width, dirty, dirty);
+        return converted;
+    }
+}
@@ -0,0 +1,71 @@
+package uk.co.jads.android.jpc;
+
+import org.jpc.emulator.PC;
+import org.jpc.emulator.pci.peripheral.DefaultVGACard;
+import org.jpc.emulator.pci.peripheral.VGACard;
+import org.jpc.interop.IPCMonitor;
+
+import java.io.File;
+
+/**
+ * Display that renders into a plain buffer nobody looks at. There is no
+ * update thread: whoever drives the PC calls {@link #update()} at its own
+ * pace, so the cost of display updates stays in the measured loop exactly
+ * as often as it is asked for.
+ */
+class HeadlessMonitor implements IPCMonitor {
+    private final DefaultVGACard vgaCard;
+
+    HeadlessMonitor(final PC pc) {
+        (vgaCard = (DefaultVGACard) pc.getComponent(VGACard.class)).setMonitor(this);
+        vgaCard.resizeDisplay(640, 480);
+    }
+
+    /** Runs one display update and tells whether any part of the display changed. */
+    boolean update() {
+        vgaCard.prepareUpdate();
+        vgaCard.updateDisplay();
+        return vgaCard.getXMin() < vgaCard.getXMax() && vgaCard.getYMin() < vgaCard.getYMax();
+    }
+
+    @Override
+    public void resizeDisplay(final int width, final int height) {
+        if (width > 0 && height > 0) {
+            vgaCard.setDisplayBuffer(new int[width * height], width, height);
+        }
+    }
+
+    @Override
+    public void keyPressed(final int keyCode) {
+    }
+
+    @Override
+    public void keyReleased(final int keyCode) {
+    }
+
+    @Override
+    public void mouseEventReceived(final int dx, final int dy, final int dz, final int buttons) {
+    }
+
+    @Override
+    public void scaleDisplay(final int width, final int height) {
+    }
+
+    @Override
+    public File saveScreenshot() {
+        return null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return true;
+    }
+
+    @Override
+    public void startUpdateThread() {
+    }
+
+    @Override
+    public void stopUpdateThread() {
+    }
+}
@@ -0,0 +1,288 @@
+package uk.co.jads.android.jpc;
+
+import org.jpc.emulator.PC;
+import org.jpc.emulator.peripheral.Keyboard;
+import org.jpc.emulator.processor.Processor;
+import org.jpc.j2se.VirtualClock;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Boots a PC without any UI and reports, as one JSON object, how long the
+ * boot took and how fast a scripted workload ran afterwards. A phase ends
+ * once the display has stopped changing for the settle time, which for DOS
+ * means the guest is sitting at a prompt: after booting, or after a DOOM
+ * timedemo has printed its result.
+ *
+ * Usage: HeadlessRunner [options] [JPC arguments]
+ * <pre>
+ *   --name label    name recorded in the report
+ *   --settle ms     how long the display must stay unchanged to end a phase (3000)
+ *   --type text     typed once booted, with \n for Enter; starts the workload phase
+ *   --duration ms   run the workload this long instead of until it settles
+ *   --timeout ms    give up on a phase after this long (600000)
+ *   --profile file  sample the guest address each execution batch starts
+ *                   at and write the most frequent ones there; biased
+ *                   towards batch boundaries, see {@link BlockProfile}
+ *   --coverage pct  share of all samples the profile lists (99)
+ *   --replay file   deliver the input of an {@link InputTrace} recorded with
+ *                   the app's -record option at the guest times it was
+ *                   recorded; runs a single "replay" phase from power on
+ *                   that settles once the trace is exhausted
+ *   --out file      write the report there instead of to stdout
+ * </pre>
+ * Without JPC arguments the bundled FreeDOS floppy is booted. A DOOM
+ * timedemo run looks like:
+ * <pre>
+ *   --name doom --settle 10000 --type "doom -timedemo demo3\n"
+ *   -fda mem:resources/images/freedos-ipx1.img -hda doom19.img -boot fda
+ * </pre>
+ * A replay needs the same JPC arguments and disk image contents as the
+ * recorded session. The exit status is 1 when a phase timed out, so the runner can gate a build.
+ */
+public class HeadlessRunner {
+    private static final String[] DEFAULT_ARGS = {"-fda", "mem:resources/images/freedos-ipx1.img", "-boot", "fda"};
+    /** Display updates are run as often as PCMonitor runs them for an animating display. */
+    private static final long FRAME_INTERVAL_NS = 20 * 1000000L;
+    /** Leaves the guest time to drain the keyboard buffer between typed characters. */
+    private static final long KEY_INTERVAL_NS = 50 * 1000000L;
+    private final VirtualClock clock;
+    private final PC pc;
+    private final Keyboard keyboard;
+    private final HeadlessMonitor monitor;
+    private final Processor processor;
+    private BlockProfile profile;
+    private InputTrace.Player replay;
+
+    HeadlessRunner(final String[] args) throws IOException {
+        clock = new VirtualClock();
+        pc = new PC(clock, args);
+        keyboard = (Keyboard) pc.getComponent(Keyboard.class);
+        monitor = new HeadlessMonitor(pc);
+        processor = (Processor) pc.getComponent(Processor.class);
+    }
+
+    static final class Phase {
+        final String name;
+        long wallNanos;
+        /** When the display last changed; for the boot phase, the boot time. */
+        long lastChangeNanos;
+        long instructions;
+        long updates;
+        long frames;
+        /** Key strokes and mouse packets sent to the guest. */
+        long inputEvents;
+        boolean completed;
+
+        Phase(final String name) {
+            this.name = name;
+        }
+
+        long instructionsPerSecond() {
+            return wallNanos > 0 ? (long) (instructions * 1e9 / wallNanos) : 0;
+        }
+    }
+
+    /**
+     * Executes the guest until the display has been static for settleMillis
+     * after the last character of text was typed and the last replayed event
+     * delivered, or for durationMillis when that is positive.
+     */
+    Phase run(final String name, final String text, final long settleMillis,
+              final long durationMillis, final long timeoutMillis) throws IOException {
+        final Phase phase = new Phase(name);
+        final long start = System.nanoTime();
+        long nextFrame = start;
+        long nextKey = start;
+        long lastChange = -1;
+        int typed = 0;
+        while (true) {
+            if (profile != null) {
+                // execute() runs a batch of blocks, so this samples where the batch starts
+                profile.record(processor.getInstructionPointer(), processor.isProtectedMode());
+            }
+            phase.instructions += pc.execute();
+            if (replay != null && !replay.isDone()) {
+                final long guestTime = clock.getTime();
+                if (guestTime >= replay.nextTime()) {
+                    final int before = replay.getEvents();
+                    replay.deliver(keyboard, guestTime);
+                    phase.inputEvents += replay.getEvents() - before;
+                }
+            }
+            final long now = System.nanoTime();
+            if (text != null && typed < text.length() && now >= nextKey) {
+                phase.inputEvents += type(text.charAt(typed++));
+                nextKey = now + KEY_INTERVAL_NS;
+            }
+            if (now >= nextFrame) {
+                nextFrame = now + FRAME_INTERVAL_NS;
+                phase.updates++;
+                if (monitor.update()) {
+                    phase.frames++;
+                    lastChange = now;
+                }
+            }
+            final long elapsed = now - start;
+            if (durationMillis > 0) {
+                if (elapsed >= durationMillis * 1000000L) {
+                    phase.completed = true;
+                    break;
+                }
+            } else if ((text == null || typed == text.length()) && (replay == null || replay.isDone()) && lastChange >= 0
+                    && now - lastChange >= settleMillis * 1000000L) {
+                phase.completed = true;
+                break;
+            }
+            if (elapsed >= timeoutMillis * 1000000L) {
+                break;
+            }
+        }
+        phase.wallNanos = System.nanoTime() - start;
+        phase.lastChangeNanos = lastChange >= 0 ? lastChange - start : -1;
+        return phase;
+    }
+
+    /** @return the number of key events sent */
+    private int type(final char c) {
+        final KeyMapping layout = KeyMapping.getLayout();
+        final byte scancode = layout.getCharScancode(c);
+        if (scancode == 0) {
+            System.err.println("Cannot type " + (int) c + ", skipped");
+            return 0;
+        }
+        final boolean shift = layout.needsShift(c);
+        if (shift) {
+            keyboard.keyPressed(KeyMapping.LEFT_SHIFT);
+        }
+        keyboard.keyPressed(scancode);
+        keyboard.keyReleased(scancode);
+        if (shift) {
+            keyboard.keyReleased(KeyMapping.LEFT_SHIFT);
+        }
+        return shift ? 4 : 2;
+    }
+
+    void start() {
+        pc.start();
+    }
+
+    void stop() {
+        pc.stop();
+    }
+
+    public static void main(final String[] args) throws IOException {
+        String name = "boot";
+        String text = null;
+        long settle = 3000;
+        long duration = 0;
+        long timeout = 600000;
+        String out = null;
+        String profileFile = null;
+        double coverage = 0.99;
+        String replayFile = null;
+        final List<String> pcArgs = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--name")) {
+                name = args[++i];
+            } else if (args[i].equals("--settle")) {
+                settle = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--type")) {
+                text = args[++i].replace("\\n", "\n");
+            } else if (args[i].equals("--duration")) {
+                duration = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--timeout")) {
+                timeout = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--out")) {
+                out = args[++i];
+            } else if (args[i].equals("--profile")) {
+                profileFile = args[++i];
+            } else if (args[i].equals("--coverage")) {
+                coverage = Double.parseDouble(args[++i]) / 100;
+            } else if (args[i].equals("--replay")) {
+                replayFile = args[++i];
+            } else {
+                pcArgs.add(args[i]);
+            }
+        }
+
+        final long start = System.nanoTime();
+        final HeadlessRunner runner = new HeadlessRunner(pcArgs.isEmpty() ? DEFAULT_ARGS : pcArgs.toArray(new String[pcArgs.size()]));
+        final long created = System.nanoTime();
+        if (profileFile != null) {
+            runner.profile = new BlockProfile();
+        }
+        if (replayFile != null) {
+            runner.replay = new InputTrace.Player(new FileInputStream(replayFile), runner.clock);
+        }
+        final List<Phase> phases = new ArrayList<Phase>();
+        runner.start();
+        try {
+            if (runner.replay != null) {
+                phases.add(runner.run("replay", null, settle, duration, timeout));
+            } else {
+                phases.add(runner.run("boot", null, settle, 0, timeout));
+                if (phases.get(0).completed && (text != null || duration > 0)) {
+                    phases.add(runner.run("workload", text, settle, duration, timeout));
+                }
+            }
+        } finally {
+            runner.stop();
+            if (runner.replay != null) {
+                runner.replay.close();
+            }
+        }
+        if (profileFile != null) {
+            runner.profile.write(profileFile, name, coverage);
+        }
+
+        final OutputStream stream = out == null ? System.out : new FileOutputStream(out);
+        final PrintStream report = new PrintStream(stream);
+        report.print(toJson(name, created - start, System.nanoTime() - start, phases));
+        report.println();
+        report.flush();
+        if (out != null) {
+            report.close();
+        }
+        boolean completed = true;
+        for (final Phase phase : phases) {
+            completed &= phase.completed;
+        }
+        System.exit(completed ? 0 : 1);
+    }
+
+    static String toJson(final String name, final long setupNanos, final long totalNanos, final List<Phase> phases) {
+        final StringBuilder json = new StringBuilder();
+        json.append("{\"name\":").append(quote(name))
+                .append(",\"setupMs\":").append(setupNanos / 1000000)
+                .append(",\"wallMs\":").append(totalNanos / 1000000)
+                .append(",\"phases\":[");
+        for (int i = 0; i < phases.size(); i++) {
+            final Phase phase = phases.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":").append(quote(phase.name))
+                    .append(",\"completed\":").append(phase.completed)
+                    .append(",\"wallMs\":").append(phase.wallNanos / 1000000)
+                    .append(",\"lastChangeMs\":").append(phase.lastChangeNanos < 0 ? -1 : phase.lastChangeNanos / 1000000)
+                    .append(",\"instructions\":").append(phase.instructions)
+                    .append(",\"instructionsPerSecond\":").append(phase.instructionsPerSecond())
+                    .append(",\"displayUpdates\":").append(phase.updates)
+                    .append(",\"framesRendered\":").append(phase.frames)
+                    .append(",\"inputEvents\":").append(phase.inputEvents)
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String quote(final String s) {
+        return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
@@ -0,0 +1,34 @@
+package uk.co.jads.android.jpc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import static android.view.KeyEvent.*;
+
+/** Scancode lookups for a typing mix of letters, digits and editing keys. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyMappingBenchmark {
+    private static final int[] KEYS = {
+            KEYCODE_H, KEYCODE_E, KEYCODE_L, KEYCODE_L, KEYCODE_O, KEYCODE_SPACE,
+            KEYCODE_W, KEYCODE_O, KEYCODE_R, KEYCODE_L, KEYCODE_D, KEYCODE_ENTER,
+            KEYCODE_1, KEYCODE_9, KEYCODE_MINUS, KEYCODE_EQUALS, KEYCODE_TAB,
+            KEYCODE_SHIFT_LEFT, KEYCODE_DPAD_UP, KEYCODE_DPAD_DOWN, KEYCODE_DEL, KEYCODE_BACK,
+    };
+
+    private int next;
+
+    @Benchmark
+    public byte getScancode() {
+        final int key = KEYS[next];
+        next = next + 1 == KEYS.length ? 0 : next + 1;
+        return KeyMapping.getScancode(key);
+    }
+}
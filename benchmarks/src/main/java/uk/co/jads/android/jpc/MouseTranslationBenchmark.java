@@ -0,0 +1,62 @@
+package uk.co.jads.android.jpc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Touch to mouse translation as MouseEmulator.onTouch does it, replayed over
+ * a recorded-like trace of drags and taps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MouseTranslationBenchmark {
+    private static final int EVENTS = 4096;
+    private static final int ACTION_DOWN = 0;
+    private static final int ACTION_MOVE = 2;
+
+    private final int[] actions = new int[EVENTS];
+    private final int[] xs = new int[EVENTS];
+    private final int[] ys = new int[EVENTS];
+    private int next;
+    private int lastX;
+    private int lastY;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        int x = 320;
+        int y = 240;
+        for (int i = 0; i < EVENTS; i++) {
+            actions[i] = random.nextInt(16) == 0 ? ACTION_DOWN : ACTION_MOVE;
+            x = Math.max(0, Math.min(639, x + random.nextInt(31) - 15));
+            y = Math.max(0, Math.min(479, y + random.nextInt(31) - 15));
+            xs[i] = x;
+            ys[i] = y;
+        }
+    }
+
+    @Benchmark
+    public int translate() {
+        final int i = next;
+        next = next + 1 == EVENTS ? 0 : next + 1;
+        int dx = 0;
+        int dy = 0;
+        if (actions[i] == ACTION_MOVE) {
+            dx = MouseTranslation.scale(xs[i] - lastX);
+            dy = MouseTranslation.scale(ys[i] - lastY);
+        }
+        final boolean tap = actions[i] == ACTION_DOWN && MouseTranslation.isTap(xs[i] - lastX, ys[i] - lastY);
+        lastX = xs[i];
+        lastY = ys[i];
+        return (dx << 16) ^ dy ^ (tap ? 1 : 0);
+    }
+}
@@ -0,0 +1,61 @@
+package uk.co.jads.android.jpc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A text mode update where the card reports the whole 720x400 screen dirty
+ * but only the cursor cell changed: the cell comparison that finds it,
+ * against the full-screen conversion the updater did before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TextCellsBenchmark {
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 400;
+    /** Start of the cursor cell, row 24 column 2, at its underline. */
+    private static final int CURSOR = (24 * 16 + 14) * WIDTH + 2 * 9;
+
+    private final int[] display = new int[WIDTH * HEIGHT];
+    private final int[] converted = new int[WIDTH * HEIGHT];
+    private final DirtyRegion reported = new DirtyRegion(WIDTH, HEIGHT);
+    private final BitSet changed = new BitSet();
+    private TextCells cells;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        for (int i = 0; i < display.length; i++) {
+            display[i] = random.nextBoolean() ? 0xaaaaaa : 0;
+        }
+        cells = TextCells.forDisplay(WIDTH, HEIGHT);
+        cells.diff(display, reported, true, changed);
+        reported.addAll();
+    }
+
+    @Benchmark
+    public BitSet diffCursorBlink() {
+        for (int i = CURSOR; i < CURSOR + 9; i++) {
+            display[i] ^= 0xaaaaaa;
+        }
+        changed.clear();
+        cells.diff(display, reported, false, changed);
+        return changed;
+    }
+
+    @Benchmark
+    public int[] convertFullScreen() {
+        FrameConverter.copyOpaque(display, 0, WIDTH, converted, 0, WIDTH, WIDTH, HEIGHT);
+        return converted;
+    }
+}